@@ -0,0 +1,200 @@
+package sqdance.sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// Cost of one simulator turn with trivial players so that the time and
+// allocation measured belong to the simulator rather than the strategy
+//
+// mvn package && java -jar target/benchmarks.jar TurnBenchmark -prof gc
+// (reports ns/turn and gc.alloc.rate.norm as bytes allocated per turn)
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class TurnBenchmark {
+
+    private static final long seed = 20161017;
+    private static final int room_side = 20;
+
+    @Param({"88", "1000", "1880", "4800", "20000", "36000"})
+    public int participants;
+
+    @Param({"10"})
+    public int friends;
+
+    @Param({"stationary", "snake", "random"})
+    public String player;
+
+    @Param({"1"})
+    public int threads;
+
+    private Game game;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+	Class <?> player_class =
+	    player.equals("stationary") ? Stationary.class :
+	    player.equals("snake") ? Snake.class :
+	    player.equals("random") ? RandomWalk.class : null;
+	if (player_class == null)
+	    throw new IllegalArgumentException("Unknown player: " + player);
+	Enjoyment W = Simulator.generate_enjoyment_array
+	    (friends, participants - friends - 2, new Random(seed), threads,
+	     new Edmonds());
+	game = new Game("bench", Game.factory(player_class), W, room_side,
+			threads, null, new Metrics(), Runner.abort, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tear_down()
+    {
+	game.close();
+    }
+
+    @Benchmark
+    public void turn() throws Exception
+    {
+	game.play();
+    }
+
+    // square lattice of at least d spots covering the room
+    // spacing is at most 1 so a move between neighboring spots is valid
+    private static Point[] lattice(int d, int room_side)
+    {
+	int side = (int) Math.ceil(Math.sqrt(d));
+	if (side % 2 != 0) side++;
+	double gap = Math.min(1.0, room_side / (double) side);
+	Point[] spots = new Point [side * side];
+	for (int r = 0 ; r != side ; ++r)
+	    for (int c = 0 ; c != side ; ++c)
+		spots[r * side + c] = new Point(gap * (c + 0.5), gap * (r + 0.5));
+	return spots;
+    }
+
+    // everyone stays at the starting spot for the whole game
+    public static class Stationary implements Player {
+
+	private int d;
+	private int room_side;
+	private Point[] moves;
+
+	public void init(int d, int room_side)
+	{
+	    this.d = d;
+	    this.room_side = room_side;
+	    moves = new Point [d];
+	    for (int i = 0 ; i != d ; ++i)
+		moves[i] = new Point(0.0, 0.0);
+	}
+
+	public Point[] generate_starting_locations()
+	{
+	    return Arrays.copyOf(lattice(d, room_side), d);
+	}
+
+	public Point[] play(Point[] dancers, int[] scores,
+			    int[] partner_ids, int[] enjoyment_gained)
+	{
+	    return moves;
+	}
+    }
+
+    // dancers follow a closed snake through the lattice and advance one
+    // spot every other turn (dance one turn, rotate the next)
+    public static class Snake implements Player {
+
+	private int d;
+	private int room_side;
+	private Point[] cycle;
+	private int[] spot;
+	private int turn = 0;
+	private Point[] moves;
+	private Point[] stay;
+
+	public void init(int d, int room_side)
+	{
+	    this.d = d;
+	    this.room_side = room_side;
+	    Point[] spots = lattice(d, room_side);
+	    int side = (int) Math.round(Math.sqrt(spots.length));
+	    // rows go back and forth over columns 1.. and return up column 0
+	    cycle = new Point [spots.length];
+	    int k = 0;
+	    for (int r = 0 ; r != side ; ++r)
+		for (int c = 1 ; c != side ; ++c)
+		    cycle[k++] = spots[r * side + (r % 2 == 0 ? c : side - c)];
+	    for (int r = side - 1 ; r >= 0 ; --r)
+		cycle[k++] = spots[r * side];
+	    spot = new int [d];
+	    moves = new Point [d];
+	    stay = new Point [d];
+	    for (int i = 0 ; i != d ; ++i)
+		stay[i] = new Point(0.0, 0.0);
+	}
+
+	public Point[] generate_starting_locations()
+	{
+	    Point[] L = new Point [d];
+	    for (int i = 0 ; i != d ; ++i) {
+		spot[i] = i;
+		L[i] = cycle[i];
+	    }
+	    return L;
+	}
+
+	public Point[] play(Point[] dancers, int[] scores,
+			    int[] partner_ids, int[] enjoyment_gained)
+	{
+	    if (turn++ % 2 == 0)
+		return stay;
+	    for (int i = 0 ; i != d ; ++i) {
+		spot[i] = (spot[i] + 1) % cycle.length;
+		Point to = cycle[spot[i]];
+		moves[i] = new Point(to.x - dancers[i].x, to.y - dancers[i].y);
+	    }
+	    return moves;
+	}
+    }
+
+    // everyone takes a small random step every turn
+    public static class RandomWalk implements Player {
+
+	private int d;
+	private int room_side;
+	private Random random;
+	private Point[] moves;
+
+	public void init(int d, int room_side)
+	{
+	    this.d = d;
+	    this.room_side = room_side;
+	    random = new Random(seed);
+	    moves = new Point [d];
+	}
+
+	public Point[] generate_starting_locations()
+	{
+	    return Arrays.copyOf(lattice(d, room_side), d);
+	}
+
+	public Point[] play(Point[] dancers, int[] scores,
+			    int[] partner_ids, int[] enjoyment_gained)
+	{
+	    for (int i = 0 ; i != d ; ++i) {
+		double x = dancers[i].x + random.nextDouble() - 0.5;
+		double y = dancers[i].y + random.nextDouble() - 0.5;
+		x = Math.max(0.01, Math.min(room_side - 0.01, x));
+		y = Math.max(0.01, Math.min(room_side - 0.01, y));
+		moves[i] = new Point(x - dancers[i].x, y - dancers[i].y);
+	    }
+	    return moves;
+	}
+    }
+}
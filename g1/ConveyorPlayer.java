@@ -8,6 +8,7 @@ import java.util.*;
 public class ConveyorPlayer implements sqdance.sim.Player {
 
     // globals
+    private Point[] instructions; // reused every turn, the simulator only reads it
     private Point[][] grid;
     private int[][] pairGrid; // grid of pairs, 20x40, 0 if NOT a conveyor pair, otherwise int is number of rows in conveyor
     private int pairGridCols = 20;
@@ -26,6 +27,7 @@ public class ConveyorPlayer implements sqdance.sim.Player {
     private int danceTurns = 10; // number of turns to dance before move
 
     // constants
+    private static final Point STAY = new Point(0, 0); // shared by all dancers that do not move
     private final double GRID_GAP = 0.50000001; // distance between grid points
     private final double DANCE_EPSILON = 0.000000001; // distance to move so that pair will dance
     private final double GRID_OFFSET_X = 0.00000000001; // offset of entire grid from 0,0
@@ -48,6 +50,7 @@ public class ConveyorPlayer implements sqdance.sim.Player {
     // init function called once with simulation parameters before anything else is called
     public void init(int d, int room_side) {
         this.d = d;
+        instructions = new Point[d];
         this.room_side = (double) room_side;
         
         // create the grid
@@ -146,9 +149,8 @@ public class ConveyorPlayer implements sqdance.sim.Player {
     // partner_ids: index of the current dance partner. -1 if no dance partner
     // enjoyment_gained: integer amount (-5,0,3,4, or 6) of enjoyment gained in the most recent 6-second interval
     public Point[] play(Point[] dancers, int[] scores, int[] partner_ids, int[] enjoyment_gained) {
-        Point[] instructions = new Point[d];
         for (int i = 0; i < d; i++) {
-            instructions[i] = new Point(0, 0);
+            instructions[i] = STAY;
         }
 
         // time to dance and collect points and data
@@ -559,11 +561,12 @@ public class ConveyorPlayer implements sqdance.sim.Player {
     }
 
     private Point getVector(Point a, Point b) {
-        Point diff = new Point(a.x - b.x, a.y - b.y);
-        double hypot = Math.hypot(diff.x, diff.y);
+        double dx = a.x - b.x;
+        double dy = a.y - b.y;
+        double hypot = Math.hypot(dx, dy);
         if (hypot >= 1.999) {
-            diff = new Point(diff.x/hypot * 1.999, diff.y/hypot * 1.999);
+            return new Point(dx/hypot * 1.999, dy/hypot * 1.999);
         }
-        return diff;
+        return new Point(dx, dy);
     }    
 }
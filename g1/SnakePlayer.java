@@ -8,6 +8,7 @@ import java.util.*;
 public class SnakePlayer implements sqdance.sim.Player {
 
     // globals
+    private Point[] instructions; // reused every turn, the simulator only reads it
     private Point[][] grid;
     private int gridCols = 0; // number of columns (must be even number...)
     private int gridRows = 0; // number of pairs per column
@@ -25,6 +26,7 @@ public class SnakePlayer implements sqdance.sim.Player {
     private int[] friendCount;
     
     // constants
+    private static final Point STAY = new Point(0, 0); // shared by all dancers that do not move
     private final double GRID_GAP_X = 0.5001; // distance between grid columns
     private final double GRID_GAP_Y = GRID_GAP_X * Math.sqrt(3)/2; // distance between grid rows
     private final double GRID_ODD_OFFSET = GRID_GAP_X / 2; // offset odd rows by this much X for hexagonal pattern
@@ -47,6 +49,7 @@ public class SnakePlayer implements sqdance.sim.Player {
     // init function called once with simulation parameters before anything else is called
     public void init(int d, int room_side) {
         this.d = d;
+        instructions = new Point[d];
         this.room_side = (double) room_side;
 
         activeFriends = new HashSet<Integer>();
@@ -173,18 +176,16 @@ public class SnakePlayer implements sqdance.sim.Player {
         }
 
         // fallback: do nothing
-        Point[] instructions = new Point[d];
         for (int i = 0; i < d; i++) {
-            instructions[i] = new Point(0, 0);
+            instructions[i] = STAY;
         }
         return instructions;
     }
 
     public Point[] findFriendsPlay(Point[] dancers, int[] scores, int[] partner_ids, int[] enjoyment_gained) {
-        Point[] instructions = new Point[d];
         int numDancers = snakeDancers.size();
         for (int i = 0; i < d; i++) {
-            instructions[i] = new Point(0, 0);
+            instructions[i] = STAY;
 
             // update remaining available enjoyment
             if (enjoyment_gained[i] > 0) {
@@ -299,9 +300,8 @@ public class SnakePlayer implements sqdance.sim.Player {
     }
     
     public Point[] findSoulmatePlay(Point[] dancers, int[] scores, int[] partner_ids, int[] enjoyment_gained) {
-        Point[] instructions = new Point[d];
         for (int i = 0; i < d; i++) {
-            instructions[i] = new Point(0, 0);
+            instructions[i] = STAY;
         }
 
         // time to dance and collect points and data
@@ -385,10 +385,9 @@ public class SnakePlayer implements sqdance.sim.Player {
     }
     
     private Point[] sampleFriendsPlay(Point[] dancers, int[] scores, int[] partner_ids, int[] enjoyment_gained) {
-        Point[] instructions = new Point[d];
         int numDancers = snakeDancers.size();
         for (int i = 0; i < d; i++) {
-            instructions[i] = new Point(0, 0);
+            instructions[i] = STAY;
         }
 
         if (turnCounter % 2 != 0) {
@@ -532,11 +531,12 @@ public class SnakePlayer implements sqdance.sim.Player {
     }
 
     private Point getVector(Point a, Point b) {
-        Point diff = new Point(a.x - b.x, a.y - b.y);
-        double hypot = Math.hypot(diff.x, diff.y);
+        double dx = a.x - b.x;
+        double dy = a.y - b.y;
+        double hypot = Math.hypot(dx, dy);
         if (hypot >= 1.999) {
-            diff = new Point(diff.x/hypot * 1.999, diff.y/hypot * 1.999);
+            return new Point(dx/hypot * 1.999, dy/hypot * 1.999);
         }
-        return diff;
+        return new Point(dx, dy);
     }
 }
@@ -0,0 +1,23 @@
+package sqdance.sim;
+
+// Player exchanging coordinates in arrays instead of points
+// All arrays are owned by the simulator and reused every turn
+// The simulator detects which of the two interfaces a player implements
+
+public interface ArrayPlayer {
+
+    public void init(int d, int room_side);
+    // x, y -> write the starting location of every player
+    public void generate_starting_locations(double[] x, double[] y);
+    // x, y             -> locations of all players
+    // partner_ids      -> index of player each player was dancing with (or itself if none)
+    // enjoyment_gained -> number of enjoyment points (3,4, or 6) gained during the most recent 6-second interval
+    // dx, dy           -> write your next action (zero on entry, leave 0 to not move)
+    public void play(double[] x,
+		     double[] y,
+		     int[] scores,
+		     int[] partner_ids,
+		     int[] enjoyment_gained,
+		     double[] dx,
+		     double[] dy);
+}
@@ -0,0 +1,191 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Sweep of games over participants x friends x seeds run concurrently in
+// a single JVM, each game with its own random source
+// Writes one CSV line with the score statistics of every game
+//
+// java sqdance.sim.Batch -g g1 -d 88,1000,1880 -f 0,10,50 --seeds 1..5
+//                        [-t turns] [--jobs games] [--threads tiles]
+//                        [--csv file] [--scenarios dir]
+
+class Batch {
+
+    public static void main(String[] args)
+    {
+	String group = "g0";
+	long[] participants = {88};
+	long[] friends = {10};
+	long[] seeds = {0};
+	int turns = 1800;
+	int room_side = 20;
+	int jobs = Runtime.getRuntime().availableProcessors();
+	int threads = 1;
+	PrintStream csv = System.out;
+	File scenarios = null;
+	Class <?> player_class = null;
+	try {
+	    for (int a = 0 ; a != args.length ; ++a)
+		if (args[a].equals("-f") || args[a].equals("--friends")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing number of friends");
+		    friends = values(args[a]);
+		} else if (args[a].equals("-d") || args[a].equals("--participants")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing number of total participants");
+		    participants = values(args[a]);
+		} else if (args[a].equals("--seeds")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing seeds");
+		    seeds = values(args[a]);
+		} else if (args[a].equals("-g") || args[a].equals("--group")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing group number");
+		    group = args[a];
+		} else if (args[a].equals("-t") || args[a].equals("--turns")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing number of turns");
+		    turns = Integer.parseInt(args[a]);
+		    if (turns <= 0)
+			throw new IllegalArgumentException("Invalid number of turns");
+		} else if (args[a].equals("--jobs")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing number of jobs");
+		    jobs = Integer.parseInt(args[a]);
+		    if (jobs <= 0)
+			throw new IllegalArgumentException("Invalid number of jobs");
+		} else if (args[a].equals("--threads")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing number of threads");
+		    threads = Integer.parseInt(args[a]);
+		    if (threads <= 0)
+			throw new IllegalArgumentException("Invalid number of threads");
+		} else if (args[a].equals("--csv")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Invalid file path");
+		    csv = new PrintStream(new FileOutputStream(args[a], false));
+		} else if (args[a].equals("--scenarios")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing scenario directory");
+		    scenarios = new File(args[a]);
+		} else throw new IllegalArgumentException("Unknown argument: " + args[a]);
+	    for (long f : friends)
+		if (f < 0)
+		    throw new IllegalArgumentException("Invalid number of friends");
+	    player_class = Simulator.load(group);
+	} catch (Exception e) {
+	    System.err.println("Error during setup: " + e.getMessage());
+	    e.printStackTrace();
+	    System.exit(1);
+	}
+	// submit every game of the sweep
+	ExecutorService executor = Executors.newFixedThreadPool(jobs);
+	List <Future <String>> games = new ArrayList <Future <String>> ();
+	for (long d : participants)
+	    for (long f : friends) {
+		if (d <= f + 1 || d % 2 != 0) {
+		    System.err.println("Skipping " + d + " participants with " +
+				       f + " friends");
+		    continue;
+		}
+		for (long seed : seeds)
+		    games.add(executor.submit(game(group, player_class, (int) d,
+						   (int) f, seed, room_side,
+						   turns, threads, scenarios)));
+	    }
+	executor.shutdown();
+	// write results in sweep order
+	csv.println("group,participants,friends,turns,seed,min_score," +
+		    "mean_score,max_score,max_possible_score,soulmates,seconds");
+	int errors = 0;
+	for (Future <String> game : games)
+	    try {
+		csv.println(game.get());
+		csv.flush();
+	    } catch (Exception e) {
+		Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+		System.err.println("Error during the game: " + cause.getMessage());
+		cause.printStackTrace();
+		errors++;
+	    }
+	if (csv != System.out) csv.close();
+	System.exit(errors == 0 ? 0 : 1);
+    }
+
+    private static Callable <String> game(final String group,
+					  final Class <?> player_class,
+					  final int participants,
+					  final int friends,
+					  final long seed,
+					  final int room_side,
+					  final int turns,
+					  final int threads,
+					  final File scenarios)
+    {
+	return new Callable <String> () {
+	    public String call() throws Exception {
+		SimulationEngine.Config config = new SimulationEngine.Config();
+		config.group = group;
+		config.participants = participants;
+		config.friends = friends;
+		config.seed = seed;
+		config.room_side = room_side;
+		config.turns = turns;
+		config.threads = threads;
+		config.scenarios = scenarios;
+		long start = System.nanoTime();
+		SimulationEngine engine = new SimulationEngine(config);
+		try {
+		    engine.init(player_class);
+		    engine.run_to_end();
+		} finally {
+		    engine.close();
+		}
+		int max_score = engine.max_score();
+		double seconds = (System.nanoTime() - start) * 1e-9;
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		long sum = 0;
+		int soulmates = 0;
+		for (int i = 0 ; i != participants ; ++i) {
+		    int score = engine.score(i);
+		    min = Math.min(min, score);
+		    max = Math.max(max, score);
+		    sum += score;
+		    if (engine.met_soulmate(i)) soulmates++;
+		}
+		System.err.println("Finished " + participants + " participants, " +
+				   friends + " friends, seed " + seed);
+		return String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%.2f,%d,%d,%d,%.3f",
+				     group, participants, friends, turns, seed,
+				     min, sum / (double) participants, max,
+				     max_score, soulmates, seconds);
+	    }};
+    }
+
+    // comma separated values and inclusive ranges (lo..hi)
+    static long[] values(String spec)
+    {
+	List <Long> values = new ArrayList <Long> ();
+	for (String part : spec.split(",")) {
+	    int range = part.indexOf("..");
+	    if (range < 0)
+		values.add(Long.parseLong(part.trim()));
+	    else {
+		long lo = Long.parseLong(part.substring(0, range).trim());
+		long hi = Long.parseLong(part.substring(range + 2).trim());
+		if (lo > hi)
+		    throw new IllegalArgumentException("Invalid range: " + part);
+		for (long v = lo ; v <= hi ; ++v)
+		    values.add(v);
+	    }
+	}
+	long[] array = new long [values.size()];
+	for (int i = 0 ; i != array.length ; ++i)
+	    array[i] = values.get(i);
+	return array;
+    }
+}
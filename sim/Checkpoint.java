@@ -0,0 +1,201 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+// Everything a game depends on at the start of a turn, so that any number
+// of branches can continue from there, in memory or from a file
+// The enjoyment is forked, so branches share the pages of remaining
+// enjoyment until they change them, and the player is copied by Java
+// serialization (it and what it keeps must be Serializable)
+// The random source of the simulator is only used to make the enjoyment,
+// so a random source of the player is part of the player
+//
+// file:   magic, version, parameters of the game, state of the turn
+//         (Game.State), enjoyment (Enjoyment.write), serialized player
+
+public class Checkpoint {
+
+	public static final int magic = 0x5351434B; // "SQCK"
+	public static final int version = 1;
+
+	final String group;
+	final int room_side;
+	final int turns;
+	final int threads;
+	final int timeout_policy;
+	final long cpu_budget;
+	private final Game.State state;
+	private final Enjoyment W; // never written, only forked
+	private final byte[] player;
+
+	Checkpoint(String group, int room_side, int turns, int threads,
+	           int timeout_policy, long cpu_budget, Game.State state,
+	           Enjoyment W, byte[] player)
+	{
+		this.group = group;
+		this.room_side = room_side;
+		this.turns = turns;
+		this.threads = threads;
+		this.timeout_policy = timeout_policy;
+		this.cpu_budget = cpu_budget;
+		this.state = state;
+		this.W = W;
+		this.player = player;
+	}
+
+	// (throws) NotSerializableException if the player cannot be copied
+	static byte[] serialize(Object player) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(player);
+		}
+		return bytes.toByteArray();
+	}
+
+	private Object player() throws IOException, ClassNotFoundException
+	{
+		try (ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(player))) {
+			return in.readObject();
+		}
+	}
+
+	// turn the branches start from
+	public int turn()
+	{
+		return state.turn;
+	}
+
+	public String group()
+	{
+		return group;
+	}
+
+	// number of dancers
+	public int size()
+	{
+		return state.x.length;
+	}
+
+	// friends of every dancer
+	public int friends()
+	{
+		return W.friends(0).length;
+	}
+
+	// a new game continuing from the checkpoint (safe to call concurrently)
+	// log -> events of the branch (null for none)
+	// metrics -> timing of the branch
+	SimulationEngine fork(EventLog log, Metrics metrics) throws Exception
+	{
+		Enjoyment branch;
+		synchronized (this) {
+			branch = W.fork();
+		}
+		Game game = new Game(group, new Callable <Object> () {
+				public Object call() throws Exception {
+					return player();
+				}}, state, branch, room_side, threads, log, metrics,
+			timeout_policy, cpu_budget);
+		return new SimulationEngine(this, branch, game, log, metrics);
+	}
+
+	public SimulationEngine fork() throws Exception
+	{
+		return fork(null, new Metrics());
+	}
+
+	public void save(File file) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeUTF(group);
+			out.writeInt(room_side);
+			out.writeInt(turns);
+			out.writeInt(threads);
+			out.writeInt(timeout_policy);
+			out.writeLong(cpu_budget);
+			int N = state.x.length;
+			out.writeInt(N);
+			out.writeInt(state.turn);
+			out.writeInt(state.hold);
+			out.writeInt(state.held);
+			out.writeInt(state.told);
+			for (int i = 0 ; i != N ; ++i) {
+				out.writeDouble(state.x[i]);
+				out.writeDouble(state.y[i]);
+				out.writeDouble(state.px[i]);
+				out.writeDouble(state.py[i]);
+				out.writeInt(state.partner[i]);
+				out.writeInt(state.P[i]);
+				out.writeInt(state.E[i]);
+				out.writeBoolean(state.C[i]);
+				out.writeInt(state.score[i]);
+				out.writeBoolean(state.met_soulmate[i]);
+			}
+			synchronized (this) {
+				W.write(out);
+			}
+			out.writeInt(player.length);
+			out.write(player);
+		}
+	}
+
+	public static Checkpoint load(File file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != magic || in.readInt() != version)
+				throw new IOException("Not a checkpoint: " + file);
+			String group = in.readUTF();
+			int room_side = in.readInt();
+			int turns = in.readInt();
+			int threads = in.readInt();
+			int timeout_policy = in.readInt();
+			long cpu_budget = in.readLong();
+			int N = in.readInt();
+			if (N <= 0)
+				throw new IOException("Invalid checkpoint: " + file);
+			int turn = in.readInt();
+			int hold = in.readInt();
+			int held = in.readInt();
+			int told = in.readInt();
+			double[] x = new double [N];
+			double[] y = new double [N];
+			double[] px = new double [N];
+			double[] py = new double [N];
+			int[] partner = new int [N];
+			int[] P = new int [N];
+			int[] E = new int [N];
+			boolean[] C = new boolean [N];
+			int[] score = new int [N];
+			boolean[] met_soulmate = new boolean [N];
+			for (int i = 0 ; i != N ; ++i) {
+				x[i] = in.readDouble();
+				y[i] = in.readDouble();
+				px[i] = in.readDouble();
+				py[i] = in.readDouble();
+				partner[i] = in.readInt();
+				P[i] = in.readInt();
+				E[i] = in.readInt();
+				C[i] = in.readBoolean();
+				score[i] = in.readInt();
+				met_soulmate[i] = in.readBoolean();
+			}
+			Game.State state = new Game.State(turn, hold, held, told, x, y,
+			                                  px, py, partner, P, E, C,
+			                                  score, met_soulmate);
+			Enjoyment W = Enjoyment.read(in);
+			if (W.size() != N)
+				throw new IOException("Invalid checkpoint: " + file);
+			byte[] player = new byte [in.readInt()];
+			in.readFully(player);
+			return new Checkpoint(group, room_side, turns, threads,
+			                      timeout_policy, cpu_budget, state, W, player);
+		}
+	}
+}
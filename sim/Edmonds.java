@@ -2,70 +2,144 @@ package sqdance.sim;
 
 // Edmond's algorithm for maximum matching in general graphs
 // Adapted from:  https://sites.google.com/site/indy256/algo/edmonds_matching
+// Starts from a greedy matching (in the order of Karp and Sipser), keeps
+// blossoms as disjoint sets of nodes and keeps its scratch arrays across
+// searches; only the nodes touched by the previous search are reset
 
-public class Edmonds {
+public class Edmonds implements Matcher {
 
-	private static int lca(int[] match, int[] base, int[] p, int a, int b)
+	private int nodes = 0;
+	private int[] match = null;
+	private int[] p = new int [0];
+	private int[] q = new int [0];
+	private boolean[] used = new boolean [0];
+	// blossoms are sets of nodes merged into their base
+	private int[] set = new int [0];
+	// bases of the two paths of the blossom being contracted
+	private int[] blossom = new int [0];
+	// nodes with p, set or used changed by the current search
+	private int[] touched = new int [0];
+	private boolean[] is_touched = new boolean [0];
+	private int touched_count = 0;
+	// a node is on the path of lca if its entry equals stamp
+	private int[] path = new int [0];
+	private int stamp = 0;
+	// unmatched neighbors and nodes left with one of them (greedy matching)
+	private int[] degree = new int [0];
+	private int[] single = new int [0];
+
+	private void resize(int nodes)
+	{
+		this.nodes = nodes;
+		p = new int [nodes];
+		q = new int [nodes];
+		used = new boolean [nodes];
+		set = new int [nodes];
+		blossom = new int [nodes];
+		touched = new int [nodes];
+		is_touched = new boolean [nodes];
+		path = new int [nodes];
+		degree = new int [nodes];
+		single = new int [nodes];
+		for (int i = 0 ; i != nodes ; ++i) {
+			p[i] = -1;
+			set[i] = i;
+		}
+		touched_count = 0;
+		stamp = 0;
+	}
+
+	private void touch(int v)
+	{
+		if (!is_touched[v]) {
+			is_touched[v] = true;
+			touched[touched_count++] = v;
+		}
+	}
+
+	private void reset()
+	{
+		for (int k = 0 ; k != touched_count ; ++k) {
+			int v = touched[k];
+			p[v] = -1;
+			set[v] = v;
+			used[v] = false;
+			is_touched[v] = false;
+		}
+		touched_count = 0;
+	}
+
+	private int base(int v)
+	{
+		while (set[v] != v)
+			v = set[v] = set[set[v]];
+		return v;
+	}
+
+	private int lca(int a, int b)
 	{
-		boolean[] used = new boolean[match.length];
+		if (++stamp == 0) {
+			for (int i = 0 ; i != nodes ; ++i)
+				path[i] = 0;
+			stamp = 1;
+		}
 		for (;;) {
-			a = base[a];
-			used[a] = true;
+			a = base(a);
+			path[a] = stamp;
 			if (match[a] < 0) break;
 			a = p[match[a]];
 		}
 		for (;;) {
-			b = base[b];
-			if (used[b]) return b;
+			b = base(b);
+			if (path[b] == stamp) return b;
 			b = p[match[b]];
 		}
 	}
 
-	private static void mark(int[] match, int[] base, boolean[] blossom,
-	                         int[] p, int v, int b, int children)
+	private int mark(int blossoms, int v, int b, int children)
 	{
-		for (; base[v] != b ; v = p[match[v]]) {
-			blossom[base[v]] = blossom[base[match[v]]] = true;
+		for (; base(v) != b ; v = p[match[v]]) {
+			blossom[blossoms++] = base(v);
+			blossom[blossoms++] = base(match[v]);
 			p[v] = children;
 			children = match[v];
 		}
+		return blossoms;
 	}
 
-	private static int find(int[][] graph, int[] match, int[] p, int root)
+	private int find(int[][] graph, int root)
 	{
-		int nodes = graph.length;
-		boolean[] used = new boolean [nodes];
-		int[] base = new int [nodes];
-		for (int i = 0 ; i != nodes ; ++i) {
-			p[i] = -1;
-			base[i] = i;
-		}
+		reset();
+		touch(root);
 		used[root] = true;
 		int qh = 0;
 		int qt = 0;
-		int[] q = new int [nodes];
 		q[qt++] = root;
 		while (qh < qt) {
 			int v = q[qh++];
 			for (int to : graph[v]) {
-				if (base[v] == base[to] || match[v] == to) ;
+				if (base(v) == base(to) || match[v] == to) ;
 				else if (to == root || (match[to] >= 0 && p[match[to]] >= 0)) {
-					int curbase = lca(match, base, p, v, to);
-					boolean[] blossom = new boolean [nodes];
-					mark(match, base, blossom, p, v, curbase, to);
-					mark(match, base, blossom, p, to, curbase, v);
-					for (int i = 0 ; i != nodes ; ++i)
-						if (blossom[base[i]]) {
-							base[i] = curbase;
-							if (!used[i]) {
-								used[i] = true;
-								q[qt++] = i;
-							}
+					int curbase = lca(v, to);
+					int blossoms = mark(0, v, curbase, to);
+					blossoms = mark(blossoms, to, curbase, v);
+					// nodes merged earlier into a base are already used, so
+					// only the bases themselves can still be unused
+					for (int k = 0 ; k != blossoms ; ++k) {
+						int i = blossom[k];
+						if (i == curbase || set[i] != i) continue;
+						set[i] = curbase;
+						if (!used[i]) {
+							used[i] = true;
+							q[qt++] = i;
 						}
+					}
 				} else if (p[to] < 0) {
+					touch(to);
 					p[to] = v;
 					if (match[to] < 0) return to;
 					to = match[to];
+					touch(to);
 					used[to] = true;
 					q[qt++] = to;
 				}
@@ -74,16 +148,61 @@ public class Edmonds {
 		return -1;
 	}
 
-	public static int[] matching(int[][] graph)
+	// match nodes left with a single unmatched neighbor first, otherwise the
+	// lowest unmatched node with its neighbor of fewest unmatched neighbors
+	// (leaves few nodes for the augmenting searches)
+	private void greedy(int[][] graph)
+	{
+		int singles = 0;
+		for (int i = 0 ; i != nodes ; ++i) {
+			degree[i] = 0;
+			for (int to : graph[i])
+				if (to != i) degree[i]++;
+			if (degree[i] == 1)
+				single[singles++] = i;
+		}
+		int next = 0;
+		for (;;) {
+			int v = -1;
+			while (singles != 0 && v < 0) {
+				int u = single[--singles];
+				if (match[u] < 0 && degree[u] == 1) v = u;
+			}
+			if (v < 0) {
+				while (next != nodes && (match[next] >= 0 || degree[next] == 0))
+					next++;
+				if (next == nodes) break;
+				v = next;
+			}
+			int w = -1;
+			for (int to : graph[v])
+				if (to != v && match[to] < 0 && (w < 0 || degree[to] < degree[w]))
+					w = to;
+			match[v] = w;
+			match[w] = v;
+			for (int to : graph[v])
+				if (match[to] < 0 && --degree[to] == 1)
+					single[singles++] = to;
+			for (int to : graph[w])
+				if (match[to] < 0 && --degree[to] == 1)
+					single[singles++] = to;
+		}
+	}
+
+	public int[] matching(int[][] graph)
 	{
 		int nodes = graph.length;
-		int[] match = new int [nodes];
-		int[] p = new int [nodes];
+		if (nodes != this.nodes)
+			resize(nodes);
+		else
+			reset();
+		match = new int [nodes];
 		for (int i = 0 ; i != nodes ; ++i)
 			match[i] = -1;
+		greedy(graph);
 		for (int i = 0 ; i != nodes ; ++i)
 			if (match[i] < 0) {
-				int v = find(graph, match, p, i);
+				int v = find(graph, i);
 				while (v >= 0) {
 					int pv = p[v];
 					int ppv = match[pv];
@@ -92,6 +211,8 @@ public class Edmonds {
 					v = ppv;
 				}
 			}
-		return match;
+		int[] result = match;
+		match = null;
+		return result;
 	}
 }
@@ -0,0 +1,265 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.util.*;
+
+// Relationships and remaining enjoyment between all pairs of dancers
+// Only friend lists and soulmates are stored per dancer; the remaining
+// enjoyment is recorded for pairs that have danced, all other pairs
+// still have the maximum enjoyment of their relationship
+
+class Enjoyment {
+
+	// relationship types
+	public static final int stranger = 0;
+	public static final int friend = 1;
+	public static final int soulmate = 2;
+
+	private final int[][] friends;
+	private final int[] soulmates;
+	private final int[] eps;
+	private final int[] emax;
+
+	// slots per page of the table
+	private static final int page_bits = 10;
+	private static final int page = 1 << page_bits;
+	private static final int page_mask = page - 1;
+
+	// open addressing table of pairs that danced (key 0 is empty) in pages
+	// that forks share until written (owned pages are not shared)
+	private long[][] keys;
+	private int[][] values;
+	private boolean[] owned;
+	private int capacity;
+	private int size = 0;
+
+	// friends -> sorted friend ids (soulmate excluded) of every dancer
+	// soulmates -> soulmate id of every dancer
+	// eps, emax -> enjoyment per turn and in total for each relationship type
+	public Enjoyment(int[][] friends, int[] soulmates, int[] eps, int[] emax)
+	{
+		if (friends.length != soulmates.length ||
+		    eps.length != 3 || emax.length != 3)
+			throw new IllegalArgumentException();
+		this.friends = friends;
+		this.soulmates = soulmates;
+		this.eps = eps.clone();
+		this.emax = emax.clone();
+		allocate(page);
+	}
+
+	public int size()
+	{
+		return soulmates.length;
+	}
+
+	public int soulmate(int i)
+	{
+		return soulmates[i];
+	}
+
+	public int[] friends(int i)
+	{
+		return friends[i];
+	}
+
+	public boolean friends(int i, int j)
+	{
+		return Arrays.binarySearch(friends[i], j) >= 0;
+	}
+
+	public int relation(int i, int j)
+	{
+		if (soulmates[i] == j) return soulmate;
+		if (friends(i, j)) return friend;
+		return stranger;
+	}
+
+	// enjoyment gained per turn when i and j dance
+	public int eps(int i, int j)
+	{
+		return eps[relation(i, j)];
+	}
+
+	// the score of a dancer that enjoys everyone fully
+	public int max_score()
+	{
+		int N = soulmates.length;
+		int f = friends[0].length;
+		return emax[soulmate] + f * emax[friend] + (N - f - 2) * emax[stranger];
+	}
+
+	private long key(int i, int j)
+	{
+		return i < j ? (long) i * soulmates.length + j
+		             : (long) j * soulmates.length + i;
+	}
+
+	private long key_at(int s)
+	{
+		return keys[s >>> page_bits][s & page_mask];
+	}
+
+	private int slot(long key)
+	{
+		int mask = capacity - 1;
+		int s = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		for (;;) {
+			long k = keys[s >>> page_bits][s & page_mask];
+			if (k == 0 || k == key) return s;
+			s = (s + 1) & mask;
+		}
+	}
+
+	// enjoyment i and j can still give each other
+	public int remaining(int i, int j)
+	{
+		if (i == j) return 0;
+		int s = slot(key(i, j));
+		return key_at(s) != 0 ? values[s >>> page_bits][s & page_mask]
+		                      : emax[relation(i, j)];
+	}
+
+	// i and j dance for one turn and use up the enjoyment gained
+	public int dance(int i, int j)
+	{
+		return dance(i, j, 1);
+	}
+
+	// i and j dance for turns turns (enjoyment gained per turn)
+	public int dance(int i, int j, int turns)
+	{
+		int w = eps(i, j);
+		long key = key(i, j);
+		int s = slot(key);
+		if (key_at(s) == 0) {
+			own(s >>> page_bits);
+			keys[s >>> page_bits][s & page_mask] = key;
+			values[s >>> page_bits][s & page_mask] = emax[relation(i, j)];
+			if (++size * 2 > capacity) {
+				grow();
+				s = slot(key);
+			}
+		}
+		own(s >>> page_bits);
+		values[s >>> page_bits][s & page_mask] -= w * turns;
+		return w;
+	}
+
+	// copy a page shared with a fork before writing it
+	private void own(int p)
+	{
+		if (owned[p]) return;
+		keys[p] = keys[p].clone();
+		values[p] = values[p].clone();
+		owned[p] = true;
+	}
+
+	private void grow()
+	{
+		long[][] old_keys = keys;
+		int[][] old_values = values;
+		allocate(capacity * 2);
+		for (int p = 0 ; p != old_keys.length ; ++p)
+			for (int k = 0 ; k != page ; ++k)
+				if (old_keys[p][k] != 0)
+					put(old_keys[p][k], old_values[p][k]);
+	}
+
+	private void allocate(int slots)
+	{
+		capacity = slots;
+		keys = new long [slots / page][page];
+		values = new int [slots / page][page];
+		owned = new boolean [slots / page];
+		Arrays.fill(owned, true);
+	}
+
+	// into a table that has room and no such key
+	private void put(long key, int value)
+	{
+		int s = slot(key);
+		keys[s >>> page_bits][s & page_mask] = key;
+		values[s >>> page_bits][s & page_mask] = value;
+	}
+
+	// a copy that shares the relationships and the pages of remaining
+	// enjoyment with this one, until either writes to a page
+	// (every page is copied at most once per fork, so forking the state
+	// of a long game costs only the pages the branches change)
+	public Enjoyment fork()
+	{
+		Arrays.fill(owned, false);
+		return new Enjoyment(this);
+	}
+
+	private Enjoyment(Enjoyment W)
+	{
+		friends = W.friends;
+		soulmates = W.soulmates;
+		eps = W.eps;
+		emax = W.emax;
+		capacity = W.capacity;
+		keys = W.keys.clone();
+		values = W.values.clone();
+		owned = new boolean [keys.length];
+		size = W.size;
+	}
+
+	// relationships, then the pairs that danced and their remaining enjoyment
+	public void write(DataOutputStream out) throws IOException
+	{
+		int N = soulmates.length;
+		int f = friends[0].length;
+		out.writeInt(N);
+		out.writeInt(f);
+		for (int k = 0 ; k != 3 ; ++k) {
+			out.writeInt(eps[k]);
+			out.writeInt(emax[k]);
+		}
+		for (int i = 0 ; i != N ; ++i) {
+			out.writeInt(soulmates[i]);
+			for (int j : friends[i])
+				out.writeInt(j);
+		}
+		out.writeInt(size);
+		for (int p = 0 ; p != keys.length ; ++p)
+			for (int k = 0 ; k != page ; ++k)
+				if (keys[p][k] != 0) {
+					out.writeLong(keys[p][k]);
+					out.writeInt(values[p][k]);
+				}
+	}
+
+	public static Enjoyment read(DataInputStream in) throws IOException
+	{
+		int N = in.readInt();
+		int f = in.readInt();
+		if (N <= 0 || f < 0 || f > N)
+			throw new IOException("Invalid enjoyment");
+		int[] eps = new int [3];
+		int[] emax = new int [3];
+		for (int k = 0 ; k != 3 ; ++k) {
+			eps[k] = in.readInt();
+			emax[k] = in.readInt();
+		}
+		int[] soulmates = new int [N];
+		int[][] friends = new int [N][f];
+		for (int i = 0 ; i != N ; ++i) {
+			soulmates[i] = in.readInt();
+			for (int k = 0 ; k != f ; ++k)
+				friends[i][k] = in.readInt();
+		}
+		Enjoyment W = new Enjoyment(friends, soulmates, eps, emax);
+		int size = in.readInt();
+		if (size < 0)
+			throw new IOException("Invalid enjoyment");
+		int slots = W.capacity;
+		while (size * 2 > slots) slots *= 2;
+		W.allocate(slots);
+		for (int k = 0 ; k != size ; ++k)
+			W.put(in.readLong(), in.readInt());
+		W.size = size;
+		return W;
+	}
+}
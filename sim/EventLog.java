@@ -0,0 +1,304 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+// Log of the events of a game for --verbose and --log
+// The game writes events as primitive records into a ring buffer and a
+// background thread turns them into text (the verbose messages) and/or a
+// binary file, so the game never formats or writes anything itself
+// The game keeps a null log when disabled so that nothing is recorded
+//
+// file:   magic, version, then one record per event: type (byte) and the
+//         fields of the type (ints and doubles)
+//
+// java sqdance.sim.EventLog log.bin   (prints the verbose messages)
+
+class EventLog {
+
+	public static final int magic = 0x53514556; // "SQEV"
+	public static final int version = 1;
+
+	// types of events and their fields
+	public static final byte turn = 0;           // turn
+	public static final byte pair = 1;           // i, j want to dance
+	public static final byte move = 2;           // i, x, y -> x, y
+	public static final byte claustrophobic = 3; // i
+	public static final byte exhausted = 4;      // i, j no longer enjoy it
+	public static final byte obstructed = 5;     // i, j cannot dance
+	public static final byte dance = 6;          // i, j, enjoyment gained
+
+	// records in the ring (a power of 2)
+	private static final int capacity = 1 << 16;
+	private static final int mask = capacity - 1;
+
+	// ring of records
+	private final byte[] type = new byte [capacity];
+	private final int[] a = new int [capacity];
+	private final int[] b = new int [capacity];
+	private final int[] c = new int [capacity];
+	private final double[] x0 = new double [capacity];
+	private final double[] y0 = new double [capacity];
+	private final double[] x1 = new double [capacity];
+	private final double[] y1 = new double [capacity];
+	// records written by the game and records drained
+	private volatile long head = 0;
+	private volatile long tail = 0;
+	private long cached_tail = 0;
+
+	private final PrintStream text;
+	private final DataOutputStream data;
+	private final Thread drain;
+	private volatile boolean closed = false;
+	private IOException error = null;
+
+	// text -> verbose messages (null for none)
+	// file -> binary log (null for none)
+	public EventLog(PrintStream text, File file) throws IOException
+	{
+		// flushed by the drain when idle instead of on every line
+		this.text = text == null ? null :
+			new PrintStream(new BufferedOutputStream(text, 1 << 16), false);
+		if (file == null)
+			data = null;
+		else {
+			data = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+			data.writeInt(magic);
+			data.writeInt(version);
+		}
+		drain = new Thread() {
+				public void run() {
+					drain();
+				}};
+		drain.setDaemon(true);
+		drain.setName("event log");
+		drain.start();
+	}
+
+	// slot of the next record (waits while the ring is full)
+	private int next()
+	{
+		long h = head;
+		if (h - cached_tail == capacity) {
+			while (h - (cached_tail = tail) == capacity)
+				LockSupport.parkNanos(10000);
+		}
+		return (int) h & mask;
+	}
+
+	private void put(int s, byte t)
+	{
+		type[s] = t;
+		// publish the record to the drain
+		head = head + 1;
+	}
+
+	public void turn(int turn)
+	{
+		int s = next();
+		a[s] = turn;
+		put(s, EventLog.turn);
+	}
+
+	public void pair(int i, int j)
+	{
+		int s = next();
+		a[s] = i;
+		b[s] = j;
+		put(s, pair);
+	}
+
+	public void move(int i, double x, double y, double to_x, double to_y)
+	{
+		int s = next();
+		a[s] = i;
+		x0[s] = x;
+		y0[s] = y;
+		x1[s] = to_x;
+		y1[s] = to_y;
+		put(s, move);
+	}
+
+	public void claustrophobic(int i)
+	{
+		int s = next();
+		a[s] = i;
+		put(s, claustrophobic);
+	}
+
+	public void exhausted(int i, int j)
+	{
+		int s = next();
+		a[s] = i;
+		b[s] = j;
+		put(s, exhausted);
+	}
+
+	public void obstructed(int i, int j)
+	{
+		int s = next();
+		a[s] = i;
+		b[s] = j;
+		put(s, obstructed);
+	}
+
+	public void dance(int i, int j, int enjoyment)
+	{
+		int s = next();
+		a[s] = i;
+		b[s] = j;
+		c[s] = enjoyment;
+		put(s, dance);
+	}
+
+	// write out all events and stop the drain
+	public void close() throws IOException
+	{
+		closed = true;
+		LockSupport.unpark(drain);
+		boolean interrupted = false;
+		for (;;)
+			try {
+				drain.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (data != null) data.close();
+		if (text != null) text.flush();
+		if (error != null) throw error;
+	}
+
+	private void drain()
+	{
+		try {
+			for (;;) {
+				// read closed before head so no event is left behind
+				boolean last = closed;
+				long h = head;
+				long t = tail;
+				if (t == h) {
+					if (last) break;
+					if (data != null) data.flush();
+					if (text != null) text.flush();
+					LockSupport.parkNanos(1000000);
+					continue;
+				}
+				for (; t != h ; ++t) {
+					int s = (int) t & mask;
+					if (text != null)
+						print(text, type[s], a[s], b[s], x0[s], y0[s], x1[s], y1[s]);
+					if (data != null)
+						write(data, type[s], a[s], b[s], c[s], x0[s], y0[s], x1[s], y1[s]);
+					// free the slots in batches for the game
+					if ((t & 1023) == 1023) tail = t + 1;
+				}
+				tail = h;
+			}
+		} catch (IOException e) {
+			error = e;
+			// keep freeing slots so the game is never blocked
+			while (!closed || tail != head) {
+				tail = head;
+				LockSupport.parkNanos(1000000);
+			}
+		}
+	}
+
+	private static void write(DataOutputStream out, byte type, int a, int b, int c,
+	                          double x0, double y0, double x1, double y1)
+		throws IOException
+	{
+		out.writeByte(type);
+		switch (type) {
+			case turn:
+			case claustrophobic:
+				out.writeInt(a);
+				break;
+			case move:
+				out.writeInt(a);
+				out.writeDouble(x0);
+				out.writeDouble(y0);
+				out.writeDouble(x1);
+				out.writeDouble(y1);
+				break;
+			case dance:
+				out.writeInt(a);
+				out.writeInt(b);
+				out.writeInt(c);
+				break;
+			default:
+				out.writeInt(a);
+				out.writeInt(b);
+		}
+	}
+
+	// the verbose message of an event
+	private static void print(PrintStream out, byte type, int a, int b,
+	                          double x0, double y0, double x1, double y1)
+	{
+		switch (type) {
+			case turn:
+				out.println(Simulator.clock(a * 6));
+				break;
+			case pair:
+				out.println(a + " and " + b + " want to dance");
+				break;
+			case move:
+				out.println(a + " moved from (" + x0 + ", " + y0 + ")"
+				            + " to (" + x1 + ", " + y1 + ")");
+				break;
+			case claustrophobic:
+				out.println(a + " is feeling claustrophobic!");
+				break;
+			case exhausted:
+				out.println(a + " and " + b + " do not enjoy dancing with each other anymore.");
+				break;
+			case obstructed:
+				out.println(a + " and " + b + " cannot dance with each other right now.");
+				break;
+			case dance:
+				out.println(a + " and " + b + " gained enjoyment.");
+				break;
+		}
+	}
+
+	// print the verbose messages of a binary log
+	public static void main(String[] args)
+	{
+		if (args.length != 1) {
+			System.err.println("Usage: java sqdance.sim.EventLog log.bin");
+			System.exit(1);
+		}
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(args[0]), 1 << 16))) {
+			if (in.readInt() != magic || in.readInt() != version)
+				throw new IOException("Not an event log: " + args[0]);
+			for (;;) {
+				int type = in.read();
+				if (type < 0) break;
+				int a = in.readInt();
+				int b = 0;
+				double x0 = 0, y0 = 0, x1 = 0, y1 = 0;
+				if (type == move) {
+					x0 = in.readDouble();
+					y0 = in.readDouble();
+					x1 = in.readDouble();
+					y1 = in.readDouble();
+				} else if (type != turn && type != claustrophobic) {
+					b = in.readInt();
+					if (type == dance) in.readInt();
+				}
+				print(out, (byte) type, a, b, x0, y0, x1, y1);
+			}
+		} catch (IOException e) {
+			out.flush();
+			System.err.println("Error reading the event log: " + e.getMessage());
+			System.exit(1);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,85 @@
+package sqdance.sim;
+
+// Everything the GUI shows of a game at the start of one turn
+// Captured from a game in progress or decoded from a trace
+
+class Frame {
+
+	public final String group;
+	public final int room_side;
+	public final int max_score;
+	public int turn;
+
+	public final double[] x; // location of players
+	public final double[] y;
+	public final double[] px; // previous location of players
+	public final double[] py;
+	public final int[] partner; // own id if nobody
+	public final boolean[] enjoyed; // gained enjoyment in the last turn
+	public final int[] remaining; // enjoyment left with the partner
+	public final int[] relation; // with the partner (stranger if nobody)
+	public final int[] score;
+
+	public Frame(String group, int N, int room_side, int max_score)
+	{
+		this.group = group;
+		this.room_side = room_side;
+		this.max_score = max_score;
+		x = new double [N];
+		y = new double [N];
+		px = new double [N];
+		py = new double [N];
+		partner = new int [N];
+		enjoyed = new boolean [N];
+		remaining = new int [N];
+		relation = new int [N];
+		score = new int [N];
+	}
+
+	public int size()
+	{
+		return x.length;
+	}
+
+	public void capture(Game game)
+	{
+		int N = x.length;
+		Enjoyment W = game.enjoyment();
+		int[] P = game.partners();
+		turn = game.turn();
+		System.arraycopy(game.x(), 0, x, 0, N);
+		System.arraycopy(game.y(), 0, y, 0, N);
+		System.arraycopy(game.previous_x(), 0, px, 0, N);
+		System.arraycopy(game.previous_y(), 0, py, 0, N);
+		System.arraycopy(P, 0, partner, 0, N);
+		System.arraycopy(game.enjoyed(), 0, enjoyed, 0, N);
+		System.arraycopy(game.scores(), 0, score, 0, N);
+		for (int i = 0 ; i != N ; ++i) {
+			int j = P[i];
+			remaining[i] = W.remaining(i, j);
+			relation[i] = i == j ? 0 : W.relation(i, j);
+		}
+	}
+
+	// content of data.txt for the GUI
+	// gui_refresh -> milliseconds until the next request (-1 for none)
+	public String text(long gui_refresh)
+	{
+		int N = x.length;
+		StringBuilder buf = new StringBuilder(N * 64);
+		buf.append(N + "," + room_side + "," + Simulator.clock(turn * 6) + "," +
+		           max_score + "," + gui_refresh);
+		for (int i = 0 ; i != N ; ++i)
+			buf.append("," + group +
+			           "," + x[i] +
+			           "," + y[i] +
+			           "," + px[i] +
+			           "," + py[i] +
+			           "," + partner[i] +
+			           "," + (enjoyed[i] ? 1 : 0) +
+			           "," + remaining[i] +
+			           "," + relation[i] +
+			           "," + score[i]);
+		return buf.toString();
+	}
+}
@@ -0,0 +1,150 @@
+package sqdance.sim;
+
+import java.nio.*;
+import java.nio.charset.*;
+
+// Binary GUI frames holding only the dancers that changed since the frame
+// encoded before, with a keyframe of all dancers every keyframe frames
+//
+// header:  kind (byte, 1 for keyframes), sequence, turn, dancers,
+//          room side (short), max score, refresh (ms), records,
+//          group (short + utf8, keyframes only)
+// records: id gap from the previous record (varint), flags (byte) and the
+//          fields of the flags in this order:
+//            position  x, y (zigzag varints, deltas on non-keyframes)
+//            previous  px - x, py - y (zigzag varints, absent if equal)
+//            partner   (varint)
+//            remaining (varint)
+//            score     (zigzag varint)
+//          bit 5 of the flags is enjoyed and bits 6-7 the relation
+// Locations are fixed-point with the quantization of the trace (2^-20)
+
+class FrameEncoder {
+
+	public static final int keyframe = 32;
+
+	// flags of a record
+	public static final int position = 1;
+	public static final int previous = 2;
+	public static final int partner_changed = 4;
+	public static final int remaining_changed = 8;
+	public static final int score_changed = 16;
+	public static final int enjoyed = 32;
+	public static final int relation_shift = 6;
+
+	private final int N;
+	private final byte[] group;
+	private ByteBuffer buf;
+	// last encoded frame
+	private final int[] qx;
+	private final int[] qy;
+	private final int[] qpx;
+	private final int[] qpy;
+	private final int[] partner;
+	private final int[] remaining;
+	private final int[] score;
+	private final byte[] state;
+	private int sequence = -1;
+
+	public FrameEncoder(String group, int N)
+	{
+		this.N = N;
+		this.group = group.getBytes(StandardCharsets.UTF_8);
+		// header and the largest record of every dancer
+		buf = ByteBuffer.allocate(32 + this.group.length + N * 36);
+		qx = new int [N];
+		qy = new int [N];
+		qpx = new int [N];
+		qpy = new int [N];
+		partner = new int [N];
+		remaining = new int [N];
+		score = new int [N];
+		state = new byte [N];
+	}
+
+	public int sequence()
+	{
+		return sequence;
+	}
+
+	public boolean keyframe()
+	{
+		return sequence % keyframe == 0;
+	}
+
+	private static void put_varint(ByteBuffer buf, int v)
+	{
+		while ((v & ~0x7F) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	// encode the next frame into the reused buffer
+	// (the buffer is valid until the next call)
+	public ByteBuffer encode(Frame frame, long gui_refresh)
+	{
+		if (frame.size() != N)
+			throw new IllegalArgumentException();
+		boolean key = ++sequence % keyframe == 0;
+		buf.clear();
+		buf.put((byte) (key ? 1 : 0)).putInt(sequence).putInt(frame.turn)
+		   .putInt(N).putShort((short) frame.room_side).putInt(frame.max_score)
+		   .putInt((int) gui_refresh);
+		int count_at = buf.position();
+		buf.putInt(0);
+		if (key)
+			buf.putShort((short) group.length).put(group);
+		int records = 0;
+		int last = -1;
+		for (int i = 0 ; i != N ; ++i) {
+			int x = Trace.quantize(frame.x[i]);
+			int y = Trace.quantize(frame.y[i]);
+			int px = Trace.quantize(frame.px[i]);
+			int py = Trace.quantize(frame.py[i]);
+			byte s = (byte) ((frame.enjoyed[i] ? enjoyed : 0) |
+			                 (frame.relation[i] << relation_shift));
+			int flags = s & 0xFF;
+			if (key || x != qx[i] || y != qy[i]) flags |= position;
+			if (px != x || py != y) flags |= previous;
+			if (key || frame.partner[i] != partner[i]) flags |= partner_changed;
+			if (key || frame.remaining[i] != remaining[i]) flags |= remaining_changed;
+			if (key || frame.score[i] != score[i]) flags |= score_changed;
+			// a dancer left out keeps all fields of the last frame
+			boolean changed = key || (flags & ~(0xE0 | previous)) != 0 ||
+				s != state[i] || px != qpx[i] || py != qpy[i];
+			if (changed) {
+				put_varint(buf, i - last - 1);
+				buf.put((byte) flags);
+				if ((flags & position) != 0) {
+					put_varint(buf, Trace.zigzag(key ? x : x - qx[i]));
+					put_varint(buf, Trace.zigzag(key ? y : y - qy[i]));
+				}
+				if ((flags & previous) != 0) {
+					put_varint(buf, Trace.zigzag(px - x));
+					put_varint(buf, Trace.zigzag(py - y));
+				}
+				if ((flags & partner_changed) != 0)
+					put_varint(buf, frame.partner[i]);
+				if ((flags & remaining_changed) != 0)
+					put_varint(buf, frame.remaining[i]);
+				if ((flags & score_changed) != 0)
+					put_varint(buf, Trace.zigzag(frame.score[i]));
+				last = i;
+				records++;
+			}
+			qx[i] = x;
+			qy[i] = y;
+			qpx[i] = px;
+			qpy[i] = py;
+			partner[i] = frame.partner[i];
+			remaining[i] = frame.remaining[i];
+			score[i] = frame.score[i];
+			state[i] = s;
+		}
+		buf.putInt(count_at, records);
+		buf.flip();
+		return buf;
+	}
+}
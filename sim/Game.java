@@ -0,0 +1,719 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// State of one game in progress and the rules applied every turn
+// Dancers are kept as columns of primitive arrays shared with the player
+// through reused buffers, so that a turn does not allocate once warmed up
+
+class Game {
+
+    // simulation parameters
+    private static final int claustrophobic_eps = -5;
+    private static final double personal_bubble = 0.1;
+
+    // CPU time limits of the player calls (ms)
+    private static final int init_timeout = 10000;
+    private static final int play_timeout = 1000;
+
+    // outcomes of the obstruction search of a dancer and its partner
+    private static final byte obstructed = 1;
+    private static final byte claustrophobic_i = 2;
+    private static final byte claustrophobic_j = 3;
+
+    private final String group;
+    private final int N;
+    private final int room_side;
+    private final Enjoyment W;
+    private final EventLog log;
+    private final Runner runner;
+    private final int timeout_policy;
+    private final Object instance; // what the player class made
+    private final ArrayPlayer player;
+    private final HoldingPlayer holding; // null if the player never holds
+    private int hold = 0; // turns the player promised not to move
+    private int held = 0; // turns of the promise played without a call
+    private int told = 0; // held turns told to the player on the next call
+
+    private final double[] x; // location of players
+    private final double[] y;
+    private final double[] px; // previous location of player, for drawing movement lines
+    private final double[] py;
+    private final int[] partner; // who each player is dancing with (own id if nobody)
+    // what the player is given and writes (replaced when a call that ran
+    // out of time may still hold them, so that it never races the game)
+    private double[] vx; // location of players given to the player
+    private double[] vy;
+    private int[] vscore; // scores, partners and enjoyment given to the player
+    private int[] vP;
+    private int[] vE;
+    private double[] dx; // movement vector
+    private double[] dy;
+    private final int[] intent; // who each player wants to dance with (own id if nobody)
+    private final boolean[] C;
+    private final int[] P; // partner_id; default -1 if no partner
+    private final int[] E; // enjoyment gained in last interval
+    private final int[] score;
+    private final int[] gained; // score gained in the last turn
+    private final long[] events = new long [Metrics.obstructed + 1]; // of the last turn
+    private final boolean[] met_soulmate;
+    private final byte[] O; // outcome of the obstruction search
+    private final String[] invalid; // reason a movement is invalid
+    private final Neighbors neighbors; // dancers near each dancer
+    // closest dancer and obstruction search results reused while nothing
+    // near the dancers changed (turn or move they were computed in)
+    private final int[] closest_intent;
+    private final int[] closest_at;
+    private final int[] obstruction_j;
+    private final boolean[] obstruction_pair;
+    private final byte[] obstruction_o;
+    private final int[] obstruction_at;
+    private final Tiles tiles;
+    private final Metrics metrics;
+    private int turn = 0;
+
+    // initialize the player and the starting locations
+    // player_factory -> makes the player (within the time limit of init)
+    // log -> events of the game (null to disable)
+    // metrics -> timing of the turns and counts of events
+    // timeout_policy -> what a turn the player runs out of time does (Runner)
+    // cpu_budget -> CPU nanoseconds of the player for the game (0 for no limit)
+    public Game(String group,
+		Callable <?> player_factory,
+		Enjoyment W,
+		int room_side,
+		int threads,
+		EventLog log,
+		Metrics metrics,
+		int timeout_policy,
+		long cpu_budget) throws Exception
+    {
+	this(group, player_factory, null, W, room_side, threads, log, metrics,
+	     timeout_policy, cpu_budget);
+    }
+
+    // continue a game from a state taken between turns
+    // player_factory -> makes the player as it was in the state (not
+    //                   initialized again)
+    public Game(String group,
+		final Callable <?> player_factory,
+		final State state,
+		Enjoyment W,
+		final int room_side,
+		int threads,
+		EventLog log,
+		Metrics metrics,
+		int timeout_policy,
+		long cpu_budget) throws Exception
+    {
+	this.group = group;
+	this.W = W;
+	this.room_side = room_side;
+	this.log = log;
+	this.metrics = metrics;
+	this.timeout_policy = timeout_policy;
+	final int N = this.N = W.size();
+	if (state != null && state.x.length != N)
+	    throw new IllegalArgumentException("State of a different game");
+	// initialize players
+	runner = new Runner(cpu_budget);
+	final Object[] made = new Object [1];
+	try {
+	    player = runner.call(new Callable <ArrayPlayer> () {
+		    public ArrayPlayer call() throws Exception {
+			made[0] = player_factory.call();
+			ArrayPlayer p = player(made[0]);
+			if (state == null)
+			    p.init(N, room_side);
+			else if (p instanceof PointPlayer)
+			    ((PointPlayer) p).resume(state.x, state.y);
+			return p;
+		    }}, init_timeout);
+	} catch (TimeoutException e) {
+	    runner.close();
+	    throw new TimeoutException("Player timed out during initialization.");
+	} catch (Exception e) {
+	    runner.close();
+	    throw e;
+	}
+	instance = made[0];
+	holding = instance instanceof HoldingPlayer ?
+	    (HoldingPlayer) instance : null;
+	if (state != null) {
+	    x = state.x.clone();
+	    y = state.y.clone();
+	} else {
+	    x = new double [N];
+	    y = new double [N];
+	    try {
+		runner.call(new Callable <Void> () {
+			public Void call() throws Exception {
+			    player.generate_starting_locations(x, y);
+			    return null;
+			}}, init_timeout);
+	    } catch (TimeoutException e) {
+		runner.close();
+		throw new TimeoutException("Player timed out during assigning initial starting locations.");
+	    } catch (Exception e) {
+		runner.close();
+		throw e;
+	    }
+	}
+	px = new double [N];
+	py = new double [N];
+	views();
+	partner = new int [N];
+	for (int i=0; i<N; i++) {
+	    if (!(x[i] >= 0 && x[i] <= room_side && y[i] >= 0 && y[i] <= room_side)) {
+		runner.close();
+		throw new IllegalArgumentException("Player submitted invalid initial location.");
+	    }
+	    px[i] = x[i];
+	    py[i] = y[i];
+	    partner[i] = i;
+	}
+	intent = new int [N];
+	C = new boolean [N];
+	P = new int[N];
+	E = new int[N];
+	score = new int [N];
+	gained = new int [N];
+	met_soulmate = new boolean [N];
+	O = new byte[N];
+	invalid = new String [N];
+	tiles = new Tiles(threads, N);
+	neighbors = new Neighbors(N, room_side, 2.0, tiles);
+	neighbors.build(x, y);
+	closest_intent = new int [N];
+	closest_at = new int [N];
+	obstruction_j = new int [N];
+	obstruction_pair = new boolean [N];
+	obstruction_o = new byte [N];
+	obstruction_at = new int [N];
+	Arrays.fill(closest_at, -1);
+	Arrays.fill(obstruction_j, -1);
+	for (int i=0; i<N; i++) {
+	    P[i] = i;
+	    E[i] = 0;
+	}
+	for (int i = 0 ; i != N ; ++i)
+	    score[i] = 0;
+	if (state != null) {
+	    System.arraycopy(state.px, 0, px, 0, N);
+	    System.arraycopy(state.py, 0, py, 0, N);
+	    System.arraycopy(state.partner, 0, partner, 0, N);
+	    System.arraycopy(state.P, 0, P, 0, N);
+	    System.arraycopy(state.E, 0, E, 0, N);
+	    System.arraycopy(state.C, 0, C, 0, N);
+	    System.arraycopy(state.score, 0, score, 0, N);
+	    System.arraycopy(state.met_soulmate, 0, met_soulmate, 0, N);
+	    turn = state.turn;
+	    hold = state.hold;
+	    held = state.held;
+	    told = state.told;
+	}
+    }
+
+    // everything of a game between turns that the next turns depend on,
+    // other than the enjoyment and the player (arrays are copies)
+    static class State {
+
+	final int turn;
+	final int hold;
+	final int held;
+	final int told;
+	final double[] x;
+	final double[] y;
+	final double[] px;
+	final double[] py;
+	final int[] partner;
+	final int[] P;
+	final int[] E;
+	final boolean[] C;
+	final int[] score;
+	final boolean[] met_soulmate;
+
+	State(int turn, int hold, int held, int told,
+	      double[] x, double[] y, double[] px, double[] py,
+	      int[] partner, int[] P, int[] E, boolean[] C,
+	      int[] score, boolean[] met_soulmate)
+	{
+	    int N = x.length;
+	    if (y.length != N || px.length != N || py.length != N ||
+		partner.length != N || P.length != N || E.length != N ||
+		C.length != N || score.length != N || met_soulmate.length != N)
+		throw new IllegalArgumentException();
+	    this.turn = turn;
+	    this.hold = hold;
+	    this.held = held;
+	    this.told = told;
+	    this.x = x.clone();
+	    this.y = y.clone();
+	    this.px = px.clone();
+	    this.py = py.clone();
+	    this.partner = partner.clone();
+	    this.P = P.clone();
+	    this.E = E.clone();
+	    this.C = C.clone();
+	    this.score = score.clone();
+	    this.met_soulmate = met_soulmate.clone();
+	}
+    }
+
+    // (throws) IllegalStateException if a late call of the player is running
+    public State state()
+    {
+	if (runner.busy())
+	    throw new IllegalStateException("Player is still running");
+	return new State(turn, hold, held, told, x, y, px, py, partner, P, E, C,
+			 score, met_soulmate);
+    }
+
+    // what the player class made (for copies of the player)
+    public Object player()
+    {
+	return instance;
+    }
+
+    // makes new instances of a player class
+    static Callable <Object> factory(final Class <?> player_class)
+    {
+	return new Callable <Object> () {
+	    public Object call() throws Exception {
+		return player_class.newInstance();
+	    }};
+    }
+
+    // players implement either interface, points are adapted to arrays
+    private static ArrayPlayer player(Object p)
+    {
+	if (p instanceof ArrayPlayer)
+	    return (ArrayPlayer) p;
+	if (p instanceof Player)
+	    return new PointPlayer((Player) p);
+	throw new IllegalArgumentException("Player implements neither " +
+					   Player.class.getName() + " nor " +
+					   ArrayPlayer.class.getName());
+    }
+
+    public int turn()
+    {
+	return turn;
+    }
+
+    public Enjoyment enjoyment()
+    {
+	return W;
+    }
+
+    public double[] x()
+    {
+	return x;
+    }
+
+    public double[] y()
+    {
+	return y;
+    }
+
+    public double[] previous_x()
+    {
+	return px;
+    }
+
+    public double[] previous_y()
+    {
+	return py;
+    }
+
+    // who each player danced with in the last turn (own id if nobody)
+    public int[] partners()
+    {
+	return partner;
+    }
+
+    public int[] scores()
+    {
+	return score;
+    }
+
+    public boolean[] met_soulmate()
+    {
+	return met_soulmate;
+    }
+
+    // whether each player gained enjoyment in the last turn
+    public boolean[] enjoyed()
+    {
+	return C;
+    }
+
+    public void close()
+    {
+	tiles.close();
+	runner.close();
+    }
+
+    private final Tiles.Work validate = new Tiles.Work() {
+	    public void run(int i, int[] found) {
+		C[i] = false;
+		invalid[i] = invalid_movement(dx[i], dy[i], x[i], y[i], room_side);
+	    }};
+
+    private final Tiles.Work closest = new Tiles.Work() {
+	    public void run(int i, int[] found) {
+		if (dx[i] * dx[i] + dy[i] * dy[i] > 0.000001 * 0.000001) {
+		    intent[i] = i; // cannot dance if moving, so assign to own id
+		    return;
+		}
+		// nobody near moved since the last search
+		if (closest_at[i] > neighbors.changed(i)) {
+		    intent[i] = closest_intent[i];
+		    return;
+		}
+		// only dancers in the list can be within dancing range
+		int closest_index = neighbors.closest(x, y, i, found);
+		double closest_dist = closest_index < 0 ? Double.MAX_VALUE :
+		    distance(x[i], y[i], x[closest_index], y[closest_index]);
+		if (closest_dist > 0.5 && closest_dist < 2.0)
+		    intent[i] = closest_index;
+		else
+		    intent[i] = i;
+		closest_intent[i] = intent[i];
+		closest_at[i] = turn;
+	    }};
+
+    private final Tiles.Work obstruction = new Tiles.Work() {
+	    public void run(int i, int[] found) {
+		int j = intent[i];
+		O[i] = 0;
+		if (i > j && intent[j] == i)
+		    return;
+		boolean pair = i != j && intent[j] == i;
+		// same partner and nobody near either of them moved since
+		if (obstruction_j[i] == j && obstruction_pair[i] == pair &&
+		    neighbors.changed(i) <= obstruction_at[i] &&
+		    neighbors.changed(j) <= obstruction_at[i]) {
+		    O[i] = obstruction_o[i];
+		    return;
+		}
+		double dx = x[i] - x[j];
+		double dy = y[i] - y[j];
+		double d = dx * dx + dy * dy;
+		O[i] = obstruction(i, j, d, pair);
+		// results of searches beyond the lists depend on far dancers
+		if (neighbors.covers(Math.max(d, personal_bubble))) {
+		    obstruction_j[i] = j;
+		    obstruction_pair[i] = pair;
+		    obstruction_o[i] = O[i];
+		    obstruction_at[i] = turn;
+		} else
+		    obstruction_j[i] = -1;
+	    }};
+
+    private byte obstruction(int i, int j, double d, boolean pair)
+    {
+	// search for closest player to i
+	int o = neighbors.obstruction(x, y, i, i, j, d,
+				      personal_bubble * personal_bubble);
+	if (o != 0)
+	    return o == 2 ? claustrophobic_i : obstructed;
+	// search for closest player to j if (i,j) is a pair
+	if (!pair)
+	    return 0;
+	o = neighbors.obstruction(x, y, j, i, j, d, personal_bubble);
+	if (o != 0)
+	    return o == 2 ? claustrophobic_j : obstructed;
+	return 0;
+    }
+
+    // new arrays for the player
+    private void views()
+    {
+	vx = new double [N];
+	vy = new double [N];
+	vscore = new int [N];
+	vP = new int [N];
+	vE = new int [N];
+	dx = new double [N];
+	dy = new double [N];
+    }
+
+    // one call of the player on the arrays it is given
+    // (return) -> turns the player promises to hold
+    private Callable <Integer> play(final int told,
+				    final double[] vx, final double[] vy,
+				    final int[] vscore, final int[] vP,
+				    final int[] vE,
+				    final double[] dx, final double[] dy)
+    {
+	return new Callable <Integer> () {
+	    public Integer call() throws Exception {
+		if (told != 0)
+		    holding.held(told);
+		player.play(vx,vy,vscore,vP,vE,dx,dy);
+		return holding == null ? 0 : Math.max(holding.hold(), 0);
+	    }};
+    }
+
+    // play one turn
+    public void play() throws Exception
+    {
+	play(1);
+    }
+
+    // play up to turns turns, more than one only while the player holds
+    // and nobody moves (such turns repeat the last one)
+    // (return) -> turns played
+    public int play(int turns) throws Exception
+    {
+	if (turns <= 0)
+	    throw new IllegalArgumentException();
+	boolean moved = turn(hold == 0);
+	if (turns == 1 || hold == 0 || moved)
+	    return 1;
+	int n = repeat(Math.min(hold, turns - 1));
+	hold -= n;
+	held += n;
+	return 1 + n;
+    }
+
+    // call play function of players
+    private void call() throws Exception
+    {
+	long start = System.nanoTime();
+	System.arraycopy(x, 0, vx, 0, N);
+	System.arraycopy(y, 0, vy, 0, N);
+	System.arraycopy(score, 0, vscore, 0, N);
+	System.arraycopy(P, 0, vP, 0, N);
+	System.arraycopy(E, 0, vE, 0, N);
+	hold = 0;
+	told = held;
+	held = 0;
+	try {
+	    hold = runner.call(play(told, vx, vy, vscore, vP, vE, dx, dy),
+			       play_timeout);
+	} catch (TimeoutException e) {
+	    metrics.count(Metrics.timeouts);
+	    if (runner.exhausted()) {
+		runner.cancel();
+		throw new TimeoutException(group + " used all of its CPU budget (" +
+					   runner.spent() / 1000000 + " ms)");
+	    }
+	    if (timeout_policy == Runner.abort) {
+		runner.cancel();
+		throw new TimeoutException(group + " timed out during \"play\"!");
+	    } else if (timeout_policy == Runner.skip) {
+		// the late call keeps its arrays and its moves are dropped, so
+		// everyone stays put; the player is not told, so its next call
+		// (once the late one returns) sees turns it did not move in and
+		// scores it did not see, whatever the late call expected
+		runner.cancel();
+		views();
+	    } else
+		hold = (Integer) runner.await();
+	}
+	metrics.record(Metrics.player, System.nanoTime() - start);
+	if (!runner.busy()) {
+	    metrics.record(Metrics.player_cpu, runner.cpu());
+	    if (runner.allocated() >= 0)
+		metrics.allocated(runner.allocated());
+	}
+    }
+
+    // play one turn
+    // call -> whether to call the player (or the player holds)
+    // (return) -> whether any dancer moved
+    private boolean turn(boolean call) throws Exception
+    {
+	Arrays.fill(dx, 0.0);
+	Arrays.fill(dy, 0.0);
+	if (call)
+	    call();
+	else {
+	    hold--;
+	    held++;
+	}
+	long called = System.nanoTime();
+	// validate move;
+	tiles.run(validate);
+	for (int i=0; i<N; i++)
+	    if (invalid[i] != null)
+		throw new IllegalArgumentException(i + ": " + invalid[i]);
+	long validated = System.nanoTime();
+	metrics.record(Metrics.validate, validated - called);
+	// assign stationary players to try to dance with closest
+	tiles.run(neighbors.grid(), closest);
+	if (log != null) {
+	    // both players want to dance
+	    for (int i = 0 ; i != N ; ++i) {
+		int j = intent[i];
+		if (i < j && intent[j] == i && intent[i] == j)
+		    log.pair(i, j);
+	    }
+	    // player wants to move or has to stay put
+	    for (int i = 0 ; i != N ; ++i)
+		if (intent[i] == i)
+		    log.move(i, x[i], y[i], x[i] + dx[i], y[i] + dy[i]);
+	}
+	// move all players that must now be processed
+	boolean moved = false;
+	for (int i = 0 ; i != N ; ++i) {
+	    if (dx[i] != 0 || dy[i] != 0)
+		moved = true;
+	    px[i] = x[i];
+	    py[i] = y[i];
+	    partner[i] = intent[i];
+	    x[i] += dx[i];
+	    y[i] += dy[i];
+	}
+	long assigned = System.nanoTime();
+	metrics.record(Metrics.assign, assigned - validated);
+	// search for players closer than the partner of each player
+	// (tiles only record the outcome, updates are applied in order below)
+	neighbors.update(x, y, px, py, turn);
+	tiles.run(neighbors.grid(), obstruction);
+	// update enjoyment points
+	for (int i=0; i<N; i++) {
+	    P[i] = i;
+	    E[i] = 0;
+	    gained[i] = 0;
+	}
+	Arrays.fill(events, 0);
+	for (int i = 0 ; i != N ; ++i) {
+	    int j = intent[i];
+	    if (i > j && intent[j] == i) // avoid double processing dance pairs, only do when i < j
+		continue;
+	    boolean c = O[i] == 0; // whether player i is dancing with j
+	    if (W.soulmate(i) == j) {
+		met_soulmate[i] = true;
+		met_soulmate[j] = true;
+	    }
+	    if (O[i] == claustrophobic_i) {
+		events[Metrics.claustrophobic]++;
+		if (log != null)
+		    log.claustrophobic(i);
+		E[i] += claustrophobic_eps;
+		score[i] += claustrophobic_eps;
+		gained[i] += claustrophobic_eps;
+	    }
+	    if (i == j)
+		continue;
+	    if (intent[j] != i) {
+		partner[i] = i;
+		continue;
+	    }
+	    if (O[i] == claustrophobic_j) {
+		events[Metrics.claustrophobic]++;
+		if (log != null)
+		    log.claustrophobic(j);
+		E[j] += claustrophobic_eps;
+		score[j] += claustrophobic_eps;
+		gained[j] += claustrophobic_eps;
+	    }
+	    // if c is still true, both players dance with each other
+	    if (W.remaining(i, j) == 0 && c) { // still dance with each other but not enjoying it
+		partner[i] = j;
+		partner[j] = i;
+		events[Metrics.exhausted]++;
+		if (log != null)
+		    log.exhausted(i, j);
+	    }
+	    else if (!c) { // cannot dance because of physical obstructions
+		partner[i] = i;
+		partner[j] = j;
+		events[Metrics.obstructed]++;
+		if (log != null)
+		    log.obstructed(i, j);
+	    }
+	    else {
+		int w = W.dance(i, j);
+		E[i] = w;
+		E[j] = w;
+		P[i] = j;
+		P[j] = i;
+		score[j] += w;
+		score[i] += w;
+		gained[j] += w;
+		gained[i] += w;
+		C[j] = true;
+		C[i] = true;
+		partner[j] = i;
+		partner[i] = j;
+		events[Metrics.dances]++;
+		if (log != null)
+		    log.dance(i, j, w);
+	    }
+	}
+	for (int c = 0 ; c != events.length ; ++c)
+	    metrics.count(c, events[c]);
+	metrics.record(Metrics.enjoyment, System.nanoTime() - assigned);
+	metrics.turn(1);
+	turn++;
+	return moved;
+    }
+
+    // a turn in which nobody moves repeats the last one if nobody moved in
+    // it either, except that dancing pairs use up enjoyment, so play up to
+    // turns such turns at once but stop where a pair would stop enjoying it
+    // (return) -> turns played
+    private int repeat(int turns)
+    {
+	for (int i = 0 ; i != N ; ++i) {
+	    int j = P[i];
+	    if (i < j && C[i]) {
+		int r = W.remaining(i, j);
+		int w = W.eps(i, j);
+		// as in turn, a pair stops when exactly nothing remains (a pair
+		// at 0 stops on the next turn, which is then played normally);
+		// a remainder that is not a multiple of w never reaches 0
+		if (r == 0)
+		    return 0;
+		if (r > 0 && w > 0 && r % w == 0)
+		    turns = Math.min(turns, r / w);
+	    }
+	}
+	if (turns == 0)
+	    return 0;
+	for (int i = 0 ; i != N ; ++i) {
+	    int j = P[i];
+	    if (i < j && C[i])
+		W.dance(i, j, turns);
+	    score[i] += turns * gained[i];
+	}
+	for (int c = 0 ; c != events.length ; ++c)
+	    metrics.count(c, turns * events[c]);
+	metrics.turn(turns);
+	turn += turns;
+	return turns;
+    }
+
+    private static String invalid_movement(double dx, double dy,
+					   double x, double y, int room_side)
+    {
+	if (Double.isNaN(dx) || Double.isInfinite(dx))
+	    return "Undefined movement x";
+	else if (Double.isNaN(dy) || Double.isInfinite(dy))
+	    return "Undefined movement y";
+	else if (x + dx < 0)
+	    return "Invalid movement: x < 0";
+	else if (y + dy < 0)
+	    return "Invalid movement: y < 0";
+	else if (x + dx > room_side)
+	    return "Invalid movement: x > " + room_side;
+	else if (y + dy > room_side)
+	    return "Invalid movement: y > " + room_side;
+	else if (dx * dx + dy * dy > 2.0 * 2.0)
+	    return "Invalid movement vector of " + dx + "," + dy;
+	return null;
+    }
+
+    private static double distance(double x1, double y1, double x2, double y2)
+    {
+	double dx = x1 - x2;
+	double dy = y1 - y2;
+	return Math.sqrt(dx * dx + dy * dy);
+    }
+}
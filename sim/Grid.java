@@ -0,0 +1,121 @@
+package sqdance.sim;
+
+import java.util.*;
+
+// Uniform grid of square cells over the room used to find nearby dancers
+// The grid may be built from locations that lag behind the ones searched
+// (by at most reach) so that it need not be rebuilt when dancers move
+
+class Grid {
+
+	private final double cell;
+	private final int side;
+	private final int[] start;
+	private final int[] index;
+
+	public Grid(int nodes, int room_side, double cell)
+	{
+		if (nodes <= 0 || room_side <= 0 || !(cell > 0.0))
+			throw new IllegalArgumentException();
+		this.cell = cell;
+		side = Math.max(1, (int) Math.ceil(room_side / cell));
+		start = new int [side * side + 1];
+		index = new int [nodes];
+	}
+
+	private int cell_of(double c)
+	{
+		int k = (int) (c / cell);
+		return k < 0 ? 0 : (k >= side ? side - 1 : k);
+	}
+
+	// bucket all dancers by cell (counting sort keeps ids ascending per cell)
+	public void build(double[] x, double[] y)
+	{
+		if (x.length != index.length || y.length != index.length)
+			throw new IllegalArgumentException();
+		Arrays.fill(start, 0);
+		for (int i = 0 ; i != x.length ; ++i)
+			start[cell_of(y[i]) * side + cell_of(x[i]) + 1]++;
+		for (int c = 0 ; c != side * side ; ++c)
+			start[c + 1] += start[c];
+		for (int i = 0 ; i != x.length ; ++i) {
+			int c = cell_of(y[i]) * side + cell_of(x[i]);
+			index[start[c]++] = i;
+		}
+		// filling advanced every start by the cell size so shift back
+		for (int c = side * side ; c != 0 ; --c)
+			start[c] = start[c - 1];
+		start[0] = 0;
+	}
+
+	// all dancer ids ordered by cell (runs of the array are nearby dancers)
+	public int[] order()
+	{
+		return index;
+	}
+
+	// widen slightly so that rounding never drops a dancer at distance r
+	private static double slack(double r)
+	{
+		return r * (1 + 1e-9) + 1e-9;
+	}
+
+	// dancers other than skip whose location is within r of (cx, cy)
+	// (return) -> number of ids written to found
+	public int within(double[] x, double[] y, double cx, double cy, double r,
+	                  int skip, int[] found)
+	{
+		double s = slack(r);
+		int x0 = cell_of(cx - s), x1 = cell_of(cx + s);
+		int y0 = cell_of(cy - s), y1 = cell_of(cy + s);
+		int n = 0;
+		for (int gy = y0 ; gy <= y1 ; ++gy)
+			for (int gx = x0 ; gx <= x1 ; ++gx) {
+				int c = gy * side + gx;
+				for (int k = start[c] ; k != start[c + 1] ; ++k) {
+					int j = index[k];
+					if (j == skip) continue;
+					double dx = cx - x[j];
+					double dy = cy - y[j];
+					if (dx * dx + dy * dy <= r * r) found[n++] = j;
+				}
+			}
+		return n;
+	}
+
+	// the dancer k other than i and j with the lowest id and squared
+	// distance to a at most max(bubble, d) decides the search
+	// returns 2 if k is within bubble, 1 if k is only within d, 0 if none
+	// (same answer as the scan of all dancers by ascending id)
+	// reach -> how far any dancer may be from where the grid has it
+	public int obstruction(double[] x, double[] y, int a, int i, int j,
+	                       double d, double bubble, double reach)
+	{
+		double r = slack(Math.sqrt(Math.max(d, bubble))) + reach;
+		int x0 = cell_of(x[a] - r), x1 = cell_of(x[a] + r);
+		int y0 = cell_of(y[a] - r), y1 = cell_of(y[a] + r);
+		int first = Integer.MAX_VALUE;
+		int outcome = 0;
+		for (int cy = y0 ; cy <= y1 ; ++cy)
+			for (int cx = x0 ; cx <= x1 ; ++cx) {
+				int c = cy * side + cx;
+				for (int f = start[c] ; f != start[c + 1] ; ++f) {
+					int k = index[f];
+					// ids ascend within a cell
+					if (k > first) break;
+					if (i == k || j == k) continue;
+					double dx = x[a] - x[k];
+					double dy = y[a] - y[k];
+					if (dx * dx + dy * dy <= bubble) {
+						first = k;
+						outcome = 2;
+					} else if (dx * dx + dy * dy <= d) {
+						first = k;
+						outcome = 1;
+					}
+				}
+			}
+		return outcome;
+	}
+}
@@ -0,0 +1,197 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+// Browser GUI served from its own thread so that the game never waits
+// The game publishes a frame into a single slot and keeps playing;
+// requests get the newest frame and older frames are dropped
+// The slot and whether its frame was served change together under a lock,
+// so a request only marks the frame it sent as served
+// A frame is only wanted once the last one was served and gui_refresh
+// milliseconds passed, so the cost for the game is bounded by the FPS
+//
+// data.txt          text of the latest frame (built only while requested)
+// frame.bin?after=s binary frames (FrameEncoder) after sequence s, or all
+//                   frames since the last keyframe if s is not in them
+// events            the text of every frame pushed as server-sent events
+// metrics           timing of the turns (Prometheus text format)
+
+class Gui implements HTTPServer.Handler {
+
+	// binary frames since the last keyframe (replaced, never changed)
+	private static class Chain {
+
+		private final int first;
+		private final byte[][] frames;
+
+		private Chain(int first, byte[][] frames)
+		{
+			this.first = first;
+			this.frames = frames;
+		}
+	}
+
+	private final HTTPServer server;
+	private final long gui_refresh;
+	private final Metrics metrics;
+	private FrameEncoder encoder = null;
+	// latest frame slot (under its lock)
+	private final Object slot = new Object();
+	private byte[] text = new byte [0];
+	private Chain chain = new Chain(0, new byte [0][]);
+	private boolean served = true; // the frame in the slot was sent
+	private boolean text_wanted = true; // data.txt was asked since the last text
+	private long published = 0;
+
+	// gui_refresh -> milliseconds between frames (0 for every turn,
+	//                -1 for a frame per manual reload)
+	// metrics -> served live at /metrics
+	public Gui(long gui_refresh, Metrics metrics) throws IOException
+	{
+		this.gui_refresh = gui_refresh;
+		this.metrics = metrics;
+		server = new HTTPServer(this);
+		server.stream("events", "text/event-stream");
+		assets(server);
+		server.start();
+	}
+
+	// files of the page served as they are
+	static void assets(HTTPServer server)
+	{
+		String dir = Simulator.root + File.separator + "sim" + File.separator;
+		server.file("", new File(dir + "webpage.html"));
+		for (String path : new String[] {"webpage.html", "script.js",
+		                                 "favicon.ico", "apple-touch-icon.png"})
+			server.file(path, new File(dir + path));
+	}
+
+	public int port()
+	{
+		return server.port();
+	}
+
+	// whether the last frame was polled or pushed to a viewer
+	private boolean taken()
+	{
+		synchronized (slot) {
+			if (served) return true;
+		}
+		return server.viewers("events") != 0 && server.delivered("events");
+	}
+
+	// whether the game should publish a frame now
+	public boolean wanted()
+	{
+		if (!taken()) return false;
+		return gui_refresh <= 0 ||
+			System.nanoTime() - published >= gui_refresh * 1000000;
+	}
+
+	// frame -> read before the call returns (the caller reuses it)
+	public void publish(Frame frame)
+	{
+		publish(frame, gui_refresh);
+	}
+
+	// refresh -> milliseconds the browser waits for the next frame (-1 after
+	//            the last frame)
+	private void publish(Frame frame, long refresh)
+	{
+		published = System.nanoTime();
+		if (encoder == null)
+			encoder = new FrameEncoder(frame.group, frame.size());
+		ByteBuffer buf = encoder.encode(frame, refresh);
+		byte[] bytes = new byte [buf.remaining()];
+		buf.get(bytes);
+		Chain c;
+		boolean text_now;
+		synchronized (slot) {
+			c = chain;
+			text_now = text_wanted;
+			text_wanted = false;
+		}
+		byte[][] frames;
+		if (encoder.keyframe())
+			frames = new byte[][] {bytes};
+		else {
+			frames = new byte [c.frames.length + 1][];
+			System.arraycopy(c.frames, 0, frames, 0, c.frames.length);
+			frames[c.frames.length] = bytes;
+		}
+		boolean push = server.viewers("events") != 0;
+		String content = text_now || push ? frame.text(refresh) : null;
+		synchronized (slot) {
+			if (content != null)
+				text = content.getBytes(StandardCharsets.UTF_8);
+			served = false;
+			chain = new Chain(encoder.keyframe() ? encoder.sequence() : c.first, frames);
+		}
+		// one event for all viewers
+		if (push)
+			server.push("events", ByteBuffer.wrap(
+				("data: " + content + "\n\n").getBytes(StandardCharsets.UTF_8)));
+	}
+
+	// publish the last frame and give the browser time to get it
+	public void finish(Frame frame, long timeout) throws InterruptedException
+	{
+		// the text of the last frame is always up to date
+		synchronized (slot) {
+			text_wanted = true;
+		}
+		publish(frame, -1);
+		long end = System.currentTimeMillis() + timeout;
+		while (!taken() && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+	}
+
+	public void close()
+	{
+		server.close();
+	}
+
+	public ByteBuffer handle(String path)
+	{
+		if (path.equals("metrics"))
+			return ByteBuffer.wrap(metrics.text().getBytes(StandardCharsets.UTF_8));
+		if (path.equals("data.txt")) {
+			byte[] content;
+			synchronized (slot) {
+				content = text;
+				text_wanted = true;
+				served = true;
+			}
+			return ByteBuffer.wrap(content);
+		}
+		if (!path.equals("frame.bin") && !path.startsWith("frame.bin?after="))
+			return null;
+		int after = -1;
+		if (path.length() > 16)
+			try {
+				after = Integer.parseInt(path.substring(16));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		Chain c;
+		synchronized (slot) {
+			c = chain;
+			served = true;
+		}
+		int last = c.first + c.frames.length - 1;
+		// up to date, or continue from the next frame if it is in the chain
+		int from = 0;
+		if (after == last) from = c.frames.length;
+		else if (after >= c.first && after < last) from = after - c.first + 1;
+		int size = 0;
+		for (int i = from ; i < c.frames.length ; ++i)
+			size += c.frames[i].length;
+		ByteBuffer content = ByteBuffer.allocate(size);
+		for (int i = from ; i < c.frames.length ; ++i)
+			content.put(c.frames[i]);
+		content.flip();
+		return content;
+	}
+}
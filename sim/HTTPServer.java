@@ -2,136 +2,498 @@ package sqdance.sim;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.time.*;
 import java.time.format.*;
-import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+// Non-blocking HTTP/1.1 server for the GUI on a single selector thread
+// Connections are kept alive and any number of viewers are served at once
+// Static files are registered by path (any query is ignored), anything
+// else is asked to the handler
+// Files are read once into direct buffers (again only if they change) and
+// sent with ETag and Last-Modified so browsers revalidate with a 304;
+// dynamic content is never cached and is gzip-compressed when the client
+// accepts it and it is large enough to gain from it
+// Streams keep the response open and push every event to all their
+// clients from the same buffer; a client still sending an event skips the
+// events pushed meanwhile and gets only the latest one when it is done
+
+class HTTPServer extends Thread {
+
+	public interface Handler {
+		// path -> requested path without the leading slash
+		// (return) -> content of the reply (null for not found), not changed
+		//             after it is returned
+		public ByteBuffer handle(String path) throws IOException;
+	}
+
+	// largest request header accepted
+	private static final int max_request = 8192;
 
-class HTTPServer {
+	// seconds browsers may use a file before revalidating it
+	private static final int max_age = 60;
 
-	private ServerSocket socket = null;
+	private static final String no_cache = "Cache-Control: no-cache, no-store\r\n";
 
-	private Socket connection = null;
+	// smallest dynamic content compressed
+	private static final int min_gzip = 1024;
+
+	private static class Asset {
+
+		private final File file;
+		private long modified = -1;
+		private long length = -1;
+		private ByteBuffer content;
+		private String etag;
+		private String last_modified;
+
+		private Asset(File file)
+		{
+			this.file = file;
+		}
+
+		// read the file unless the loaded content is still current
+		private void load() throws IOException
+		{
+			long m = file.lastModified();
+			long l = file.length();
+			if (m == modified && l == length && content != null) return;
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+			buf.put(bytes).flip();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			content = buf.asReadOnlyBuffer();
+			etag = "\"" + Long.toHexString(crc.getValue()) + "-" +
+				Integer.toHexString(bytes.length) + "\"";
+			last_modified = http_date(ZonedDateTime.ofInstant(
+				Instant.ofEpochMilli(m), ZoneId.of("GMT")));
+			modified = m;
+			length = l;
+		}
+	}
 
-	private byte[] buffer = new byte [8192];
+	private static class Connection {
 
-	public HTTPServer() throws IOException
+		private final SocketChannel channel;
+		private final ByteBuffer in = ByteBuffer.allocate(max_request);
+		private final ArrayDeque <ByteBuffer> out = new ArrayDeque <ByteBuffer> ();
+		private boolean close = false;
+		private SelectionKey key = null;
+		// stream of the connection and sequence of the last event queued
+		private Stream stream = null;
+		private long queued = 0;
+
+		private Connection(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+	}
+
+	private static class Stream {
+
+		private final String type;
+		// latest event (pushed from any thread)
+		private ByteBuffer event = null;
+		private long sequence = 0;
+		// latest event written out to a client
+		private long delivered = 0;
+		// connections of the stream (selector thread only)
+		private final List <Connection> clients = new ArrayList <Connection> ();
+		private volatile int viewers = 0;
+
+		private Stream(String type)
+		{
+			this.type = type;
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel socket;
+	private final Handler handler;
+	private final Map <String, Asset> files = new HashMap <String, Asset> ();
+	private final Map <String, Stream> streams = new HashMap <String, Stream> ();
+	private volatile boolean closed = false;
+
+	public HTTPServer(Handler handler) throws IOException
 	{
-		socket = new ServerSocket();
+		this.handler = handler;
+		selector = Selector.open();
+		socket = ServerSocketChannel.open();
 		socket.bind(null);
-		if (!socket.isBound())
-			throw new NotYetBoundException();
+		socket.configureBlocking(false);
+		socket.register(selector, SelectionKey.OP_ACCEPT);
+		setDaemon(true);
+		setName("http");
 	}
 
 	public int port()
 	{
-		return socket == null ? -1 : socket.getLocalPort();
+		return socket.socket().getLocalPort();
+	}
+
+	// serve the file at the path (register before the server starts)
+	public void file(String path, File file)
+	{
+		files.put(path, new Asset(file));
 	}
 
-	public void close() throws IOException
+	// serve the path as a stream of events (register before the server starts)
+	public void stream(String path, String type)
 	{
-		if (connection != null)
-			throw new ConnectionPendingException();
-		if (socket != null) {
-			socket.close();
-			socket = null;
+		streams.put(path, new Stream(type));
+	}
+
+	// send the event to all clients of the stream
+	// event -> not changed after the call
+	public void push(String path, ByteBuffer event)
+	{
+		Stream stream = streams.get(path);
+		synchronized (stream) {
+			stream.event = event;
+			stream.sequence++;
 		}
+		selector.wakeup();
 	}
 
-	public String request() throws IOException
+	// number of clients of the stream
+	public int viewers(String path)
 	{
-		if (connection != null)
-			throw new ConnectionPendingException();
-		connection = socket.accept();
-		InputStream in = connection.getInputStream();
-		int ch, i = 0;
-		do {
-			try {
-				ch = in.read();
-			} catch (IOException e1) {
-				try {
-					connection.close();
-				} catch (IOException e2) {}
-				connection = null;
-				throw e1;
+		return streams.get(path).viewers;
+	}
+
+	// whether the last event pushed was written out to any client
+	public boolean delivered(String path)
+	{
+		Stream stream = streams.get(path);
+		synchronized (stream) {
+			return stream.delivered == stream.sequence;
+		}
+	}
+
+	public void close()
+	{
+		closed = true;
+		selector.wakeup();
+	}
+
+	public void run()
+	{
+		try {
+			while (!closed) {
+				selector.select();
+				Iterator <SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) accept();
+						else {
+							if (key.isReadable()) read(key);
+							if (key.isValid() && key.isWritable()) write(key);
+						}
+					} catch (IOException e) {
+						drop(key);
+					}
+				}
+				for (Stream stream : streams.values())
+					send(stream);
 			}
-			if (ch < 0 || i == buffer.length) {
+		} catch (IOException e) {
+			System.err.println("HTTP server error: " + e.getMessage());
+		} finally {
+			for (SelectionKey key : selector.keys())
 				try {
-					connection.close();
+					key.channel().close();
 				} catch (IOException e) {}
-				connection = null;
-				throw new UnknownServiceException("Incomplete HTTP request");
-			}
-			buffer[i++] = (byte) ch;
-		} while (i < 4 || buffer[i - 1] != '\n' || buffer[i - 2] != '\r'
-		               || buffer[i - 3] != '\n' || buffer[i - 4] != '\r');
-		for (i = 0 ; buffer[i] != '\r' ; ++i);
-		String line = new String(buffer, 0, i);
-		String[] parts = line.split(" ");
-		if (parts.length != 3 || !parts[0].equals("GET")
-		                      || !parts[1].startsWith("/")
-		                      || !parts[2].equals("HTTP/1.1")) {
 			try {
-				connection.close();
+				selector.close();
 			} catch (IOException e) {}
-			connection = null;
-			throw new UnknownServiceException("Invalid HTTP request: " + line);
 		}
-		return parts[1].substring(1);
 	}
 
-	public void reply(File file) throws IOException
+	private void accept() throws IOException
 	{
-		if (connection == null)
-			throw new NoConnectionPendingException();
-		FileInputStream in = new FileInputStream(file);
-		OutputStream out = connection.getOutputStream();
-		String date = ZonedDateTime.now(ZoneId.of("GMT")).format(
-		                    DateTimeFormatter.RFC_1123_DATE_TIME);
-		String header = "HTTP/1.1 200 OK\r\n";
-		long length = file.length();
-		header += "Content-Length: " + length + "\r\n";
-		header += "Cache-Control: no-cache, no-store\r\n";
-		header += "Date: " + date + "\r\n\r\n";
+		SocketChannel channel = socket.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection c = new Connection(channel);
+		c.key = channel.register(selector, SelectionKey.OP_READ, c);
+	}
+
+	private void drop(SelectionKey key)
+	{
+		Connection c = (Connection) key.attachment();
+		if (c != null && c.stream != null && c.stream.clients.remove(c))
+			c.stream.viewers = c.stream.clients.size();
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {}
+	}
+
+	private void read(SelectionKey key) throws IOException
+	{
+		Connection c = (Connection) key.attachment();
+		if (c.channel.read(c.in) < 0) {
+			drop(key);
+			return;
+		}
+		// nothing more is read from a stream
+		if (c.stream != null) {
+			c.in.clear();
+			return;
+		}
+		// answer every complete request in the buffer (pipelining)
+		for (;;) {
+			int end = header_end(c.in);
+			if (end < 0) {
+				if (!c.in.hasRemaining()) {
+					reply(c, 431, "Request Header Fields Too Large", "text/plain",
+					      no_cache, bytes(""), true);
+					c.in.clear();
+				}
+				break;
+			}
+			String header = new String(c.in.array(), 0, end, StandardCharsets.ISO_8859_1);
+			// keep the bytes of the next request
+			int next = end + 4;
+			c.in.flip();
+			c.in.position(next);
+			c.in.compact();
+			request(c, header);
+			if (c.close || c.stream != null) break;
+		}
+		key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ :
+		                SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		if (!c.out.isEmpty()) write(key);
+	}
+
+	// offset of \r\n\r\n in the buffered bytes or -1
+	private static int header_end(ByteBuffer in)
+	{
+		byte[] b = in.array();
+		for (int i = 3 ; i < in.position() ; ++i)
+			if (b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r')
+				return i - 3;
+		return -1;
+	}
+
+	private void request(Connection c, String header)
+	{
+		String[] lines = header.split("\r\n");
+		String[] parts = lines[0].split(" ");
+		if (parts.length != 3 || !parts[1].startsWith("/") ||
+		    !(parts[2].equals("HTTP/1.1") || parts[2].equals("HTTP/1.0"))) {
+			reply(c, 400, "Bad Request", "text/plain", no_cache, bytes(""), true);
+			return;
+		}
+		// HTTP/1.1 keeps the connection alive unless asked otherwise
+		boolean close = parts[2].equals("HTTP/1.0");
+		String if_none_match = null;
+		String if_modified_since = null;
+		boolean accept_gzip = false;
+		for (int i = 1 ; i != lines.length ; ++i) {
+			int colon = lines[i].indexOf(':');
+			if (colon < 0) continue;
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Connection"))
+				close = value.equalsIgnoreCase("close") ||
+					(close && !value.equalsIgnoreCase("keep-alive"));
+			else if (name.equalsIgnoreCase("If-None-Match"))
+				if_none_match = value;
+			else if (name.equalsIgnoreCase("If-Modified-Since"))
+				if_modified_since = value;
+			else if (name.equalsIgnoreCase("Accept-Encoding"))
+				accept_gzip = accepts_gzip(value);
+		}
+		if (!parts[0].equals("GET")) {
+			reply(c, 405, "Method Not Allowed", "text/plain", no_cache, bytes(""), close);
+			return;
+		}
+		String path = parts[1].substring(1);
+		int query = path.indexOf('?');
+		Stream stream = streams.get(query < 0 ? path : path.substring(0, query));
+		if (stream != null) {
+			// the reply has no length and lasts until either side closes
+			String start = "HTTP/1.1 200 OK\r\n" +
+				"Content-Type: " + stream.type + "\r\n" + no_cache +
+				"Connection: keep-alive\r\n" +
+				"Date: " + http_date(ZonedDateTime.now(ZoneId.of("GMT"))) + "\r\n\r\n";
+			c.out.add(ByteBuffer.wrap(start.getBytes(StandardCharsets.ISO_8859_1)));
+			c.stream = stream;
+			stream.clients.add(c);
+			stream.viewers = stream.clients.size();
+			return;
+		}
 		try {
-			out.write(header.getBytes());
-			int bytes;
-			while ((bytes = in.read(buffer)) >= 0) {
-				length -= bytes;
-				if (length < 0) break;
-				out.write(buffer, 0, bytes);
+			Asset asset = files.get(query < 0 ? path : path.substring(0, query));
+			if (asset != null) {
+				asset.load();
+				String cache = "Cache-Control: max-age=" + max_age + "\r\n" +
+					"ETag: " + asset.etag + "\r\n" +
+					"Last-Modified: " + asset.last_modified + "\r\n";
+				// If-None-Match takes precedence over If-Modified-Since
+				boolean fresh = if_none_match != null ?
+					matches(if_none_match, asset.etag) :
+					asset.last_modified.equals(if_modified_since);
+				if (fresh)
+					reply(c, 304, "Not Modified", null, cache, null, close);
+				else
+					reply(c, 200, "OK", type(path), cache,
+					      asset.content.duplicate(), close);
+				return;
 			}
-			if (length != 0)
-				throw new IOException("File modified during send");
-		} finally {
-			try {
-				in.close();
-			} catch (IOException e) {}
-			try {
-				connection.close();
-			} catch (IOException e) {}
-			connection = null;
+			ByteBuffer content = handler.handle(path);
+			if (content == null) {
+				System.err.println("Unknown HTTP request: \"" + path + "\"");
+				reply(c, 404, "Not Found", "text/plain", no_cache, bytes(""), close);
+			} else if (accept_gzip && content.remaining() >= min_gzip)
+				reply(c, 200, "OK", type(path), no_cache +
+				      "Content-Encoding: gzip\r\nVary: Accept-Encoding\r\n",
+				      gzip(content), close);
+			else
+				reply(c, 200, "OK", type(path), no_cache +
+				      "Vary: Accept-Encoding\r\n", content, close);
+		} catch (IOException e) {
+			System.err.println("HTTP reply error: " + e.getMessage());
+			reply(c, 500, "Internal Server Error", "text/plain", no_cache, bytes(""), true);
+		}
+	}
+
+	private static ByteBuffer bytes(String s)
+	{
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static ByteBuffer gzip(ByteBuffer content) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.remaining() / 4);
+		GZIPOutputStream out = new GZIPOutputStream(bytes, 1 << 16);
+		if (content.hasArray())
+			out.write(content.array(), content.arrayOffset() + content.position(),
+			          content.remaining());
+		else {
+			byte[] b = new byte [content.remaining()];
+			content.duplicate().get(b);
+			out.write(b);
+		}
+		out.close();
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	// whether an Accept-Encoding list allows gzip
+	private static boolean accepts_gzip(String encodings)
+	{
+		for (String encoding : encodings.split(",")) {
+			String[] parts = encoding.trim().split(";");
+			if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+			// gzip;q=0 refuses it
+			for (int i = 1 ; i != parts.length ; ++i) {
+				String q = parts[i].trim();
+				if (q.startsWith("q=") && q.substring(2).matches("0(\\.0*)?"))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	// whether an If-None-Match list names the tag
+	private static boolean matches(String tags, String etag)
+	{
+		for (String tag : tags.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag)) return true;
 		}
+		return false;
 	}
 
-	public void reply(String content) throws IOException
+	private static String http_date(ZonedDateTime time)
 	{
-		if (connection == null)
-			throw new NoConnectionPendingException();
-		OutputStream out = connection.getOutputStream();
-		String date = ZonedDateTime.now(ZoneId.of("GMT")).format(
-		                    DateTimeFormatter.RFC_1123_DATE_TIME);
-		String header = "HTTP/1.1 200 OK\r\n";
-		header += "Content-Length: " + content.length() + "\r\n";
-		header += "Cache-Control: no-cache, no-store\r\n";
+		return time.format(DateTimeFormatter.RFC_1123_DATE_TIME);
+	}
+
+	private static String type(String path)
+	{
+		int q = path.indexOf('?');
+		if (q >= 0) path = path.substring(0, q);
+		if (path.endsWith(".html") || path.isEmpty()) return "text/html; charset=utf-8";
+		if (path.endsWith(".js")) return "application/javascript";
+		if (path.endsWith(".png")) return "image/png";
+		if (path.endsWith(".ico")) return "image/x-icon";
+		if (path.endsWith(".bin")) return "application/octet-stream";
+		return "text/plain; charset=utf-8";
+	}
+
+	// type and content are null for replies without a body (304)
+	// cache -> header lines about caching
+	private static void reply(Connection c, int status, String reason,
+	                          String type, String cache, ByteBuffer content,
+	                          boolean close)
+	{
+		String date = http_date(ZonedDateTime.now(ZoneId.of("GMT")));
+		String header = "HTTP/1.1 " + status + " " + reason + "\r\n";
+		if (type != null)
+			header += "Content-Type: " + type + "\r\n";
+		if (content != null)
+			header += "Content-Length: " + content.remaining() + "\r\n";
+		header += cache;
+		header += "Connection: " + (close ? "close" : "keep-alive") + "\r\n";
 		header += "Date: " + date + "\r\n\r\n";
-		try {
-			out.write(header.getBytes());
-			out.write(content.getBytes());
-		} finally {
-			try {
-				connection.close();
-			} catch (IOException e) {}
-			connection = null;
+		c.out.add(ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1)));
+		if (content != null)
+			c.out.add(content);
+		c.close |= close;
+	}
+
+	// queue the latest event for the clients that sent all they had
+	private void send(Stream stream)
+	{
+		ByteBuffer event;
+		long sequence;
+		synchronized (stream) {
+			event = stream.event;
+			sequence = stream.sequence;
 		}
+		if (event == null) return;
+		for (Connection c : stream.clients)
+			if (c.out.isEmpty() && c.queued != sequence && c.key.isValid()) {
+				c.out.add(event.duplicate());
+				c.queued = sequence;
+				c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+	}
+
+	private void write(SelectionKey key) throws IOException
+	{
+		Connection c = (Connection) key.attachment();
+		while (!c.out.isEmpty()) {
+			ByteBuffer buf = c.out.peek();
+			c.channel.write(buf);
+			if (buf.hasRemaining()) {
+				// socket buffer is full, continue when writable
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			c.out.poll();
+		}
+		if (c.stream != null && c.queued != 0)
+			synchronized (c.stream) {
+				c.stream.delivered = Math.max(c.stream.delivered, c.queued);
+			}
+		if (c.close)
+			drop(key);
+		else
+			key.interestOps(SelectionKey.OP_READ);
 	}
 }
@@ -0,0 +1,157 @@
+package sqdance.sim;
+
+import java.util.*;
+
+// Regression check that turns played at once while a player holds end
+// exactly like the same turns played one by one
+// The player moves a few dancers every few turns and holds in between, so
+// pairs that stay together run out of enjoyment in the middle of a hold
+// Exits with 1 if any game differs
+//
+// java sqdance.sim.HoldCheck [-d participants] [-f friends] [--seeds 1..5]
+//                            [-t turns] [--every turns]
+
+class HoldCheck {
+
+	// moves about a tenth of the dancers every every turns, holds otherwise
+	static class Mover implements ArrayPlayer, HoldingPlayer {
+
+		private final Random random;
+		private final int every;
+		private int d;
+		private int room_side;
+		private int turn = -1;
+
+		Mover(long seed, int every)
+		{
+			random = new Random(seed);
+			this.every = every;
+		}
+
+		public void init(int d, int room_side)
+		{
+			this.d = d;
+			this.room_side = room_side;
+		}
+
+		public void generate_starting_locations(double[] x, double[] y)
+		{
+			for (int i = 0 ; i != d ; ++i) {
+				x[i] = random.nextDouble() * room_side;
+				y[i] = random.nextDouble() * room_side;
+			}
+		}
+
+		public void play(double[] x, double[] y, int[] scores,
+		                 int[] partner_ids, int[] enjoyment_gained,
+		                 double[] dx, double[] dy)
+		{
+			if (++turn % every != 0) return;
+			for (int i = 0 ; i != d ; ++i)
+				if (random.nextInt(10) == 0) {
+					dx[i] = Math.max(-x[i], Math.min(room_side - x[i],
+						random.nextDouble() - 0.5));
+					dy[i] = Math.max(-y[i], Math.min(room_side - y[i],
+						random.nextDouble() - 0.5));
+				}
+		}
+
+		public int hold()
+		{
+			return every - 1 - turn % every;
+		}
+
+		public void held(int turns)
+		{
+			turn += turns;
+		}
+	}
+
+	private static SimulationEngine engine(SimulationEngine.Config config,
+	                                       int every) throws Exception
+	{
+		SimulationEngine engine = new SimulationEngine(config);
+		engine.init(new Mover(config.seed, every));
+		return engine;
+	}
+
+	// (return) -> the first difference, or null if none
+	static String compare(SimulationEngine.Config config, int every)
+		throws Exception
+	{
+		SimulationEngine stepped = engine(config, every);
+		SimulationEngine fast = engine(config, every);
+		try {
+			while (!stepped.done())
+				stepped.step();
+			fast.run_to_end();
+			for (int i = 0 ; i != config.participants ; ++i) {
+				if (stepped.score(i) != fast.score(i))
+					return "score of " + i + ": " + stepped.score(i) +
+						" turn by turn, " + fast.score(i) + " at once";
+				if (stepped.partner(i) != fast.partner(i) ||
+				    stepped.enjoyed(i) != fast.enjoyed(i) ||
+				    stepped.met_soulmate(i) != fast.met_soulmate(i) ||
+				    stepped.x(i) != fast.x(i) || stepped.y(i) != fast.y(i))
+					return "state of " + i;
+				int j = stepped.partner(i);
+				if (stepped.remaining(i, j) != fast.remaining(i, j))
+					return "remaining enjoyment of " + i + " and " + j;
+			}
+			return null;
+		} finally {
+			stepped.close();
+			fast.close();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		SimulationEngine.Config config = new SimulationEngine.Config();
+		config.participants = 400;
+		config.turns = 400;
+		long[] seeds = {1, 2, 3, 4, 5};
+		int every = 7;
+		int errors = 0;
+		try {
+			for (int a = 0 ; a != args.length ; ++a)
+				if (args[a].equals("-f") || args[a].equals("--friends")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing number of friends");
+					config.friends = Integer.parseInt(args[a]);
+				} else if (args[a].equals("-d") || args[a].equals("--participants")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing number of total participants");
+					config.participants = Integer.parseInt(args[a]);
+				} else if (args[a].equals("-t") || args[a].equals("--turns")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing number of turns");
+					config.turns = Integer.parseInt(args[a]);
+				} else if (args[a].equals("--seeds")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing seeds");
+					seeds = Batch.values(args[a]);
+				} else if (args[a].equals("--every")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing turns between moves");
+					every = Integer.parseInt(args[a]);
+					if (every <= 0)
+						throw new IllegalArgumentException("Invalid turns between moves");
+				} else throw new IllegalArgumentException("Unknown argument: " + args[a]);
+			for (long seed : seeds) {
+				config.seed = seed;
+				String difference = compare(config, every);
+				if (difference != null) {
+					System.err.println("Seed " + seed + " differs: " + difference);
+					errors++;
+				} else
+					System.err.println("Seed " + seed + " matches");
+			}
+		} catch (Exception e) {
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(errors == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,17 @@
+package sqdance.sim;
+
+// Optional for a Player or ArrayPlayer that stays put for many turns
+// After every play the player may promise to return no moves for some
+// turns whatever happens; the simulator then does not call play for those
+// turns and may play several of them at once while nobody moves
+// A player that breaks its promise gets different results
+
+public interface HoldingPlayer {
+
+    // (return) -> turns after the last play in which play would return
+    //             no moves (0 to be called on the next turn)
+    public int hold();
+    // turns -> turns of the promise that were played without calling play
+    //          (told before the next play)
+    public void held(int turns);
+}
@@ -0,0 +1,11 @@
+package sqdance.sim;
+
+// Maximum matching of an undirected graph given as adjacency lists
+// Implementations may keep scratch space between calls but must return
+// the same matching for the same graph
+
+public interface Matcher {
+
+	// returns the node matched to every node (-1 if unmatched)
+	public int[] matching(int[][] graph);
+}
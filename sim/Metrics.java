@@ -0,0 +1,182 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.util.*;
+
+// Time spent in each phase of a turn and counts of what happened
+// Every phase keeps a histogram of its latencies in log-linear buckets
+// (2^5 buckets per power of 2, so quantiles are within about 3%) in a
+// fixed array, so recording never allocates
+// The player also has its CPU time and allocated bytes of every turn
+// Read live from the GUI thread, so values may be a turn behind
+
+class Metrics {
+
+	// phases of a turn
+	public static final int player = 0;    // call of the player
+	public static final int validate = 1;   // validation of the moves
+	public static final int assign = 2;     // partner assignment and moves
+	public static final int enjoyment = 3;  // obstructions and enjoyment
+	public static final int gui = 4;        // frame capture and publication
+	public static final int player_cpu = 5; // CPU time of the player
+	private static final String[] phases =
+		{"player", "validate", "assign", "enjoyment", "gui", "player_cpu"};
+
+	// counters of events
+	public static final int dances = 0;
+	public static final int claustrophobic = 1;
+	public static final int exhausted = 2;
+	public static final int obstructed = 3;
+	public static final int timeouts = 4;
+	private static final String[] counters =
+		{"dances", "claustrophobic", "exhausted", "obstructed", "timeouts"};
+
+	private static final double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+
+	private static class Histogram {
+
+		// sub-buckets per power of 2
+		private static final int bits = 5;
+		private static final int sub = 1 << bits;
+
+		private final long[] counts = new long [(64 - bits + 1) * sub];
+		private long count = 0;
+		private long total = 0;
+		private long max = 0;
+
+		private static int bucket(long v)
+		{
+			if (v < sub) return (int) v;
+			int e = 63 - Long.numberOfLeadingZeros(v) - bits;
+			return ((e + 1) << bits) + (int) (v >>> e) - sub;
+		}
+
+		// largest value of a bucket
+		private static long value(int b)
+		{
+			if (b < sub) return b;
+			int e = (b >>> bits) - 1;
+			return ((long) (sub + (b & (sub - 1))) << e) + (1L << e) - 1;
+		}
+
+		private void record(long v)
+		{
+			if (v < 0) v = 0;
+			counts[bucket(v)]++;
+			count++;
+			total += v;
+			if (v > max) max = v;
+		}
+
+		private long quantile(double q)
+		{
+			long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for (int b = 0 ; b != counts.length ; ++b) {
+				seen += counts[b];
+				if (seen >= rank && seen != 0)
+					return Math.min(value(b), max);
+			}
+			return max;
+		}
+	}
+
+	private final Histogram[] histograms = new Histogram [phases.length];
+	private final Histogram allocation = new Histogram();
+	private final long[] counts = new long [counters.length];
+	private int turns = 0;
+
+	public Metrics()
+	{
+		for (int p = 0 ; p != phases.length ; ++p)
+			histograms[p] = new Histogram();
+	}
+
+	// phase took nanoseconds
+	public void record(int phase, long nanoseconds)
+	{
+		histograms[phase].record(nanoseconds);
+	}
+
+	// the player allocated bytes in a turn
+	public void allocated(long bytes)
+	{
+		allocation.record(bytes);
+	}
+
+	public void count(int counter)
+	{
+		counts[counter]++;
+	}
+
+	public void count(int counter, long n)
+	{
+		counts[counter] += n;
+	}
+
+	public void turn(int n)
+	{
+		turns += n;
+	}
+
+	// table of the phases and counters
+	public void summary(PrintStream out)
+	{
+		out.println("Turns: " + turns);
+		out.println(String.format(Locale.ROOT, "%-10s %8s %10s %9s %9s %9s %9s %9s %9s",
+		                          "phase", "count", "total ms", "mean us", "p50 us",
+		                          "p90 us", "p99 us", "p99.9 us", "max us"));
+		for (int p = 0 ; p != phases.length ; ++p) {
+			Histogram h = histograms[p];
+			if (h.count == 0) continue;
+			out.println(String.format(Locale.ROOT, "%-10s %8d %10.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+			                          phases[p], h.count, h.total * 1e-6,
+			                          h.total * 1e-3 / h.count,
+			                          h.quantile(0.5) * 1e-3, h.quantile(0.9) * 1e-3,
+			                          h.quantile(0.99) * 1e-3, h.quantile(0.999) * 1e-3,
+			                          h.max * 1e-3));
+		}
+		if (allocation.count != 0)
+			out.println(String.format(Locale.ROOT, "player allocated: %.1f MB, per turn: mean %.0f," +
+			                          " p50 %d, p99 %d, max %d bytes",
+			                          allocation.total * 1e-6,
+			                          allocation.total / (double) allocation.count,
+			                          allocation.quantile(0.5), allocation.quantile(0.99),
+			                          allocation.max));
+		for (int c = 0 ; c != counters.length ; ++c)
+			out.println(counters[c] + ": " + counts[c]);
+	}
+
+	// Prometheus text format
+	public String text()
+	{
+		StringBuilder buf = new StringBuilder();
+		buf.append("# TYPE sqdance_turns_total counter\n");
+		buf.append("sqdance_turns_total ").append(turns).append('\n');
+		buf.append("# TYPE sqdance_phase_seconds summary\n");
+		for (int p = 0 ; p != phases.length ; ++p) {
+			Histogram h = histograms[p];
+			String label = "{phase=\"" + phases[p] + "\"";
+			for (double q : quantiles)
+				buf.append("sqdance_phase_seconds").append(label)
+				   .append(",quantile=\"").append(q).append("\"} ")
+				   .append(h.quantile(q) * 1e-9).append('\n');
+			buf.append("sqdance_phase_seconds_sum").append(label).append("} ")
+			   .append(h.total * 1e-9).append('\n');
+			buf.append("sqdance_phase_seconds_count").append(label).append("} ")
+			   .append(h.count).append('\n');
+		}
+		buf.append("# TYPE sqdance_player_allocated_bytes summary\n");
+		for (double q : quantiles)
+			buf.append("sqdance_player_allocated_bytes{quantile=\"").append(q).append("\"} ")
+			   .append(allocation.quantile(q)).append('\n');
+		buf.append("sqdance_player_allocated_bytes_sum ").append(allocation.total).append('\n');
+		buf.append("sqdance_player_allocated_bytes_count ").append(allocation.count).append('\n');
+		for (int c = 0 ; c != counters.length ; ++c) {
+			buf.append("# TYPE sqdance_").append(counters[c]).append("_total counter\n");
+			buf.append("sqdance_").append(counters[c]).append("_total ")
+			   .append(counts[c]).append('\n');
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,260 @@
+package sqdance.sim;
+
+import java.util.*;
+
+// Lists of the dancers near each dancer, kept across turns (Verlet lists)
+// Lists hold every dancer within range + margin + skin of the reference
+// location of a dancer, which is where it was when its list was built; a
+// dancer gets a new reference once it moved more than half the skin away,
+// so every dancer within range + margin of where it is now is in its list
+// Lists are symmetric (j in the list of i iff i in the list of j), so a
+// dancer that moves can tell every dancer whose neighborhood changed
+// Searches give the same answer as a scan over all dancers by ascending id
+// without visiting dancers in that order
+
+class Neighbors {
+
+	// extra radius beyond the range of the searches (covers the distance a
+	// stationary dancer may still move and the rounding of the searches)
+	private static final double margin = 0.01;
+	// extra radius kept so that lists survive small moves
+	private static final double skin = 0.5;
+
+	private final int N;
+	private final double range;
+	private final double radius;
+	private final double[] bx; // reference locations
+	private final double[] by;
+	private final int[][] list;
+	private final int[] count;
+	private long entries = 0;
+	private final int[] changed;
+	private final int[] rebuilt;
+	private final boolean[] rebuilding;
+	private final int[] found;
+	private final Grid grid; // cells of the reference locations
+	private final Tiles tiles;
+
+	// range -> radius within which searches must see every dancer
+	public Neighbors(int N, int room_side, double range, Tiles tiles)
+	{
+		this.N = N;
+		this.range = range;
+		this.tiles = tiles;
+		radius = range + margin + skin;
+		bx = new double [N];
+		by = new double [N];
+		list = new int [N][];
+		count = new int [N];
+		for (int i = 0 ; i != N ; ++i)
+			list[i] = new int [8];
+		changed = new int [N];
+		Arrays.fill(changed, -1);
+		rebuilt = new int [N];
+		rebuilding = new boolean [N];
+		found = new int [N];
+		grid = new Grid(N, room_side, radius);
+	}
+
+	// cells of the reference locations (for tiles of nearby dancers)
+	public Grid grid()
+	{
+		return grid;
+	}
+
+	// the last move in which i or a dancer of its list moved or the list
+	// changed (-1 if none), so results of i computed after that move hold
+	public int changed(int i)
+	{
+		return changed[i];
+	}
+
+	// whether every dancer within squared distance d is in the lists
+	public boolean covers(double d)
+	{
+		return d <= (range + margin / 2) * (range + margin / 2);
+	}
+
+	private final Tiles.Work build = new Tiles.Work() {
+			public void run(int i, int[] found) {
+				int n = grid.within(bx, by, bx[i], by[i], radius, i, found);
+				if (list[i].length < n)
+					list[i] = new int [Math.max(n, list[i].length * 2)];
+				System.arraycopy(found, 0, list[i], 0, n);
+				count[i] = n;
+			}};
+
+	// build all lists from the locations
+	public void build(double[] x, double[] y)
+	{
+		System.arraycopy(x, 0, bx, 0, N);
+		System.arraycopy(y, 0, by, 0, N);
+		grid.build(bx, by);
+		tiles.run(grid, build);
+		entries = 0;
+		for (int i = 0 ; i != N ; ++i)
+			entries += count[i];
+	}
+
+	// dancers moved from (px, py) to (x, y) in the given move
+	public void update(double[] x, double[] y, double[] px, double[] py, int move)
+	{
+		double half = skin / 2;
+		int b = 0;
+		for (int i = 0 ; i != N ; ++i) {
+			if (x[i] == px[i] && y[i] == py[i]) continue;
+			double dx = x[i] - bx[i];
+			double dy = y[i] - by[i];
+			if (dx * dx + dy * dy > half * half) rebuilt[b++] = i;
+		}
+		// rebuilding a list touches the lists of its dancers, so when many
+		// dancers moved far it is cheaper to build all lists again
+		if ((long) b * entries > (long) N * N) {
+			build(x, y);
+			Arrays.fill(changed, move);
+			return;
+		}
+		if (b != 0) {
+			for (int k = 0 ; k != b ; ++k) {
+				int i = rebuilt[k];
+				bx[i] = x[i];
+				by[i] = y[i];
+				rebuilding[i] = true;
+			}
+			grid.build(bx, by);
+			// leave the old lists and tell the old neighbors
+			for (int k = 0 ; k != b ; ++k) {
+				int i = rebuilt[k];
+				for (int f = 0 ; f != count[i] ; ++f) {
+					int j = list[i][f];
+					changed[j] = move;
+					if (!rebuilding[j]) remove(j, i);
+				}
+				entries -= count[i];
+			}
+			// join the new lists (rebuilt pairs find each other themselves)
+			for (int k = 0 ; k != b ; ++k) {
+				int i = rebuilt[k];
+				int n = grid.within(bx, by, bx[i], by[i], radius, i, found);
+				for (int f = 0 ; f != n ; ++f)
+					if (!rebuilding[found[f]]) add(found[f], i);
+				if (list[i].length < n)
+					list[i] = new int [Math.max(n, list[i].length * 2)];
+				System.arraycopy(found, 0, list[i], 0, n);
+				count[i] = n;
+				entries += n;
+			}
+			for (int k = 0 ; k != b ; ++k)
+				rebuilding[rebuilt[k]] = false;
+		}
+		// tell the neighbors of every dancer that moved
+		for (int i = 0 ; i != N ; ++i) {
+			if (x[i] == px[i] && y[i] == py[i]) continue;
+			changed[i] = move;
+			for (int f = 0 ; f != count[i] ; ++f)
+				changed[list[i][f]] = move;
+		}
+	}
+
+	private void add(int i, int j)
+	{
+		if (count[i] == list[i].length)
+			list[i] = Arrays.copyOf(list[i], count[i] * 2);
+		list[i][count[i]++] = j;
+		entries++;
+	}
+
+	private void remove(int i, int j)
+	{
+		int[] l = list[i];
+		for (int f = 0 ; f != count[i] ; ++f)
+			if (l[f] == j) {
+				l[f] = l[--count[i]];
+				entries--;
+				return;
+			}
+	}
+
+	// closest other dancer to i closer than the range
+	// same answer (including ties and rounding) as the scan by ascending id
+	//   if (dx * dx + dy * dy < closest_dist * closest_dist)
+	//       closest_dist = Math.sqrt(dx * dx + dy * dy)
+	// returns -1 if no dancer is closer than the range
+	public int closest(double[] x, double[] y, int i, int[] found)
+	{
+		int[] l = list[i];
+		int n = count[i];
+		// smallest squared distance
+		double m = Double.MAX_VALUE;
+		for (int f = 0 ; f != n ; ++f) {
+			int j = l[f];
+			double dx = x[i] - x[j];
+			double dy = y[i] - y[j];
+			double d = dx * dx + dy * dy;
+			if (d < m) m = d;
+		}
+		if (!(m < range * range)) return -1;
+		// the scan ends on a dancer within a few ulps of the smallest
+		// distance and dancers farther away cannot affect which one, unless
+		// some dancer is that close to the bound as well
+		double bound = m * (1 + 1e-12);
+		double low = bound * (1 - 1e-15);
+		double high = bound * (1 + 1e-15);
+		boolean ordered = high >= range * range;
+		int c = 0;
+		for (int f = 0 ; f != n ; ++f) {
+			int j = l[f];
+			double dx = x[i] - x[j];
+			double dy = y[i] - y[j];
+			double d = dx * dx + dy * dy;
+			if (d > low && d < high) ordered = true;
+			if (d <= bound) found[c++] = j;
+		}
+		if (ordered) {
+			// rare: scan the whole list by ascending id
+			System.arraycopy(l, 0, found, 0, n);
+			c = n;
+		}
+		Arrays.sort(found, 0, c);
+		int closest_index = -1;
+		double closest_dist = Double.MAX_VALUE;
+		for (int f = 0 ; f != c ; ++f) {
+			int j = found[f];
+			double dx = x[i] - x[j];
+			double dy = y[i] - y[j];
+			if (dx * dx + dy * dy < closest_dist * closest_dist) {
+				closest_dist = Math.sqrt(dx * dx + dy * dy);
+				closest_index = j;
+			}
+		}
+		return closest_index;
+	}
+
+	// the dancer k other than i and j with the lowest id and squared
+	// distance to a at most max(bubble, d) decides the search
+	// returns 2 if k is within bubble, 1 if k is only within d, 0 if none
+	public int obstruction(double[] x, double[] y, int a, int i, int j,
+	                       double d, double bubble)
+	{
+		// farther than the lists reach (only if a partner just moved away)
+		if (!covers(Math.max(d, bubble)))
+			return grid.obstruction(x, y, a, i, j, d, bubble, skin / 2);
+		int[] l = list[a];
+		int first = Integer.MAX_VALUE;
+		int outcome = 0;
+		for (int f = 0 ; f != count[a] ; ++f) {
+			int k = l[f];
+			if (k > first || i == k || j == k) continue;
+			double dx = x[a] - x[k];
+			double dy = y[a] - y[k];
+			if (dx * dx + dy * dy <= bubble) {
+				first = k;
+				outcome = 2;
+			} else if (dx * dx + dy * dy <= d) {
+				first = k;
+				outcome = 1;
+			}
+		}
+		return outcome;
+	}
+}
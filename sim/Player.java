@@ -1,5 +1,8 @@
 package sqdance.sim;
 
+// Player exchanging points with the simulator
+// (see ArrayPlayer for the same protocol on coordinate arrays)
+
 public interface Player {
 
     public void init(int d, int room_side);
@@ -9,6 +12,9 @@ public interface Player {
     // enjoyment_gained -> number of enjoyment points (3,4, or 6) gained during the most recent 6-second interval
     // (return)    -> return your next action
     //    x, y -> dx, dy of movement (set to 0 to not move)
+    // returned points are only read by the simulator, so the same point
+    // (such as one shared "stay" vector) and the same array may be returned
+    // for many dancers and on every turn
     public Point[] play(Point[] dancers,
 			int[] scores,
 			int[] partner_ids,
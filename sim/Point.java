@@ -1,12 +1,15 @@
 package sqdance.sim;
 
-public class Point {
+// serializable so that players keeping points can be checkpointed
+public class Point implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     // location of player represented by this point
     public final double x;
     public final double y;
 
-    protected int id; // player ids, used by simulator
+    protected int id; // player ids of the locations given to players (never read back)
 
     public Point(double x, double y) {
 	this.x = x;
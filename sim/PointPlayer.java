@@ -0,0 +1,59 @@
+package sqdance.sim;
+
+// Adapter running a point based player as an array player
+// Points of the player are only made for dancers whose location changed
+
+class PointPlayer implements ArrayPlayer {
+
+	private final Player player;
+	private Point[] L;
+
+	public PointPlayer(Player player)
+	{
+		this.player = player;
+	}
+
+	public void init(int d, int room_side)
+	{
+		player.init(d, room_side);
+	}
+
+	public void generate_starting_locations(double[] x, double[] y)
+	{
+		Point[] sL = player.generate_starting_locations();
+		if (sL == null || sL.length != x.length)
+			throw new RuntimeException("Player submitted invalid list of initial locations.");
+		L = new Point [sL.length];
+		for (int i = 0 ; i != sL.length ; ++i) {
+			x[i] = sL[i].x;
+			y[i] = sL[i].y;
+			L[i] = new Point(x[i], y[i], i);
+		}
+	}
+
+	// continue a game at the locations without starting locations
+	public void resume(double[] x, double[] y)
+	{
+		L = new Point [x.length];
+		for (int i = 0 ; i != x.length ; ++i)
+			L[i] = new Point(x[i], y[i], i);
+	}
+
+	public void play(double[] x, double[] y, int[] scores, int[] partner_ids,
+	                 int[] enjoyment_gained, double[] dx, double[] dy)
+	{
+		for (int i = 0 ; i != L.length ; ++i)
+			if (L[i].x != x[i] || L[i].y != y[i])
+				L[i] = new Point(x[i], y[i], i);
+		Point[] M = player.play(L, scores, partner_ids, enjoyment_gained);
+		if (M == null || M.length < L.length)
+			throw new IllegalArgumentException("Player submitted invalid list of actions");
+		// moves beyond the last dancer are ignored
+		for (int i = 0 ; i != L.length ; ++i) {
+			if (M[i] == null)
+				throw new IllegalArgumentException(i + ": Unspecified action");
+			dx[i] = M[i].x;
+			dy[i] = M[i].y;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package sqdance.sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Random regular graphs on adjacency lists in O(nodes * degree)
+// A sparse graph is the union of one random perfect matching per unit of
+// degree; every matching comes from its own seeded shuffle (so shuffles
+// can be made in parallel) and edges repeating an earlier matching are
+// swapped with random pairs of the same matching
+// A dense graph is the complement of a sparse one
+
+public class RegularGraph {
+
+	// tries to swap away a repeated edge before starting over
+	private static final int swap_tries = 1000;
+
+	private static long mix(long seed, long round, long attempt)
+	{
+		long z = seed + round * 0x9E3779B97F4A7C15L + attempt * 0xC2B2AE3D27D4EB4FL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// random shuffle of all nodes, consecutive nodes are the pairs
+	private static int[] shuffle(int nodes, Random random)
+	{
+		int[] p = new int [nodes];
+		for (int i = 0 ; i != nodes ; ++i)
+			p[i] = i;
+		for (int i = nodes - 1 ; i > 0 ; --i) {
+			int j = random.nextInt(i + 1);
+			int t = p[i];
+			p[i] = p[j];
+			p[j] = t;
+		}
+		return p;
+	}
+
+	private static int[][] shuffles(final int nodes, int rounds, final long seed,
+	                                final long attempt, int threads) throws Exception
+	{
+		int[][] p = new int [rounds][];
+		if (threads <= 1 || rounds <= 1) {
+			for (int r = 0 ; r != rounds ; ++r)
+				p[r] = shuffle(nodes, new Random(mix(seed, r, attempt)));
+			return p;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, rounds));
+		try {
+			List <Callable <int[]>> tasks = new ArrayList <Callable <int[]>> ();
+			for (int r = 0 ; r != rounds ; ++r) {
+				final int round = r;
+				tasks.add(new Callable <int[]> () {
+					public int[] call() {
+						return shuffle(nodes, new Random(mix(seed, round, attempt)));
+					}});
+			}
+			List <Future <int[]>> results = executor.invokeAll(tasks);
+			for (int r = 0 ; r != rounds ; ++r)
+				p[r] = results.get(r).get();
+		} finally {
+			executor.shutdown();
+		}
+		return p;
+	}
+
+	// whether a and b are connected in the first rounds of graph
+	private static boolean connected(int[][] graph, int rounds, int a, int b)
+	{
+		int[] g = graph[a];
+		for (int k = 0 ; k != rounds ; ++k)
+			if (g[k] == b) return true;
+		return false;
+	}
+
+	// add the matching of every round to the graph or fail if some
+	// repeated edge cannot be swapped away
+	private static boolean merge(int[][] graph, int[][] p, long seed, long attempt)
+	{
+		int nodes = graph.length;
+		int pairs = nodes / 2;
+		for (int r = 0 ; r != p.length ; ++r) {
+			int[] q = p[r];
+			Random random = null;
+			for (int k = 0 ; k != pairs ; ++k) {
+				int a = q[2 * k], b = q[2 * k + 1];
+				if (!connected(graph, r, a, b)) continue;
+				if (random == null)
+					random = new Random(~mix(seed, r, attempt));
+				boolean swapped = false;
+				for (int t = 0 ; t != swap_tries && !swapped ; ++t) {
+					int l = random.nextInt(pairs);
+					if (l == k) continue;
+					int c = q[2 * l], d = q[2 * l + 1];
+					if (random.nextBoolean()) {
+						int e = c;
+						c = d;
+						d = e;
+					}
+					// pairs (a, c) and (b, d) instead of (a, b) and (c, d)
+					if (connected(graph, r, a, c) || connected(graph, r, b, d))
+						continue;
+					q[2 * k + 1] = c;
+					q[2 * l] = b;
+					q[2 * l + 1] = d;
+					swapped = true;
+				}
+				if (!swapped) return false;
+			}
+			for (int k = 0 ; k != pairs ; ++k) {
+				int a = q[2 * k], b = q[2 * k + 1];
+				graph[a][r] = b;
+				graph[b][r] = a;
+			}
+		}
+		return true;
+	}
+
+	private static int[][] sparse(int nodes, int degree, long seed, int threads)
+		throws Exception
+	{
+		for (long attempt = 0 ;; ++attempt) {
+			int[][] graph = new int [nodes][degree];
+			int[][] p = shuffles(nodes, degree, seed, attempt, threads);
+			if (merge(graph, p, seed, attempt)) return graph;
+		}
+	}
+
+	private static int[][] complement(int[][] graph)
+	{
+		int nodes = graph.length;
+		int degree = nodes - 1 - (nodes == 0 ? 0 : graph[0].length);
+		int[][] c = new int [nodes][degree];
+		boolean[] connected = new boolean [nodes];
+		for (int i = 0 ; i != nodes ; ++i) {
+			for (int j : graph[i])
+				connected[j] = true;
+			int k = 0;
+			for (int j = 0 ; j != nodes ; ++j)
+				if (j != i && !connected[j]) c[i][k++] = j;
+			for (int j : graph[i])
+				connected[j] = false;
+		}
+		return c;
+	}
+
+	// random graph where every node has exactly degree neighbors
+	// (sorted adjacency lists, same seed gives the same graph)
+	// nodes must be even so that the graph has a perfect matching
+	public static int[][] random(int nodes, int degree, long seed, int threads)
+		throws Exception
+	{
+		if (nodes <= 0 || degree <= 0 || degree >= nodes || nodes % 2 != 0)
+			throw new IllegalArgumentException();
+		int[][] graph = 2 * degree > nodes ?
+			complement(sparse(nodes, nodes - 1 - degree, seed, threads)) :
+			sparse(nodes, degree, seed, threads);
+		for (int[] g : graph)
+			Arrays.sort(g);
+		return graph;
+	}
+}
@@ -0,0 +1,234 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.awt.Desktop;
+
+// Replay of a game trace in the GUI without re-running the game
+// The trace is memory-mapped and any turn is decoded from the keyframe
+// before it, so seeking to a turn costs at most one keyframe interval
+//
+// Every viewer plays at its own pace: it asks for the turn after the one it
+// shows, so viewers never take frames from each other
+//
+// java sqdance.sim.Replay trace.bin [--fps frames_per_second] [--turn t]
+
+class Replay {
+
+	// frames are read from mapped segments of at most this size
+	private static final long segment_size = 1 << 30;
+
+	private final FileChannel channel;
+	private final LongBuffer index;
+	private final long frames_end;
+	private final int frames;
+	private final int first; // turn of the first frame
+	private final int keyframe;
+	private final int bits;
+	private final Frame frame;
+	private final int[] qx; // last decoded frame
+	private final int[] qy;
+	private int decoded = -1;
+	private MappedByteBuffer segment = null;
+	private long segment_start = 0;
+
+	public Replay(File file) throws IOException
+	{
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+		                                Math.min(channel.size(), Trace.header_size(1 << 16)));
+		if (header.getInt() != Trace.magic)
+			throw new IOException("Not a game trace: " + file);
+		if (header.getInt() != Trace.version)
+			throw new IOException("Unsupported trace version: " + file);
+		int N = header.getInt();
+		int room_side = header.getInt();
+		int max_score = header.getInt();
+		keyframe = header.getInt();
+		bits = header.getInt();
+		frames = header.getInt();
+		first = header.getInt();
+		frames_end = header.getLong();
+		byte[] name = new byte [header.getShort() & 0xFFFF];
+		header.get(name);
+		if (frames <= 0 || bits != Trace.bits)
+			throw new IOException("Incomplete game trace: " + file);
+		index = channel.map(FileChannel.MapMode.READ_ONLY, frames_end,
+		                    frames * 8L).asLongBuffer();
+		frame = new Frame(new String(name, StandardCharsets.UTF_8), N,
+		                  room_side, max_score);
+		qx = new int [N];
+		qy = new int [N];
+	}
+
+	public int frames()
+	{
+		return frames;
+	}
+
+	public int first()
+	{
+		return first;
+	}
+
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	// mapped bytes of a frame record
+	private ByteBuffer record(int t) throws IOException
+	{
+		long start = index.get(t);
+		long end = t + 1 == frames ? frames_end : index.get(t + 1);
+		if (segment == null || start < segment_start ||
+		    end > segment_start + segment.capacity()) {
+			segment_start = start;
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, start,
+			                      Math.max(end, Math.min(frames_end, start + segment_size)) - start);
+		}
+		ByteBuffer buf = segment.duplicate();
+		buf.position((int) (start - segment_start));
+		buf.limit((int) (end - segment_start));
+		return buf;
+	}
+
+	// apply frame t on top of frame t - 1 (or from zero on keyframes)
+	private void apply(int t) throws IOException
+	{
+		ByteBuffer buf = record(t);
+		boolean key = t % keyframe == 0;
+		int N = qx.length;
+		for (int i = 0 ; i != N ; ++i) {
+			int flags = buf.get() & 0xFF;
+			int dx = (flags & Trace.x_changed) != 0 ? Trace.unzigzag(Trace.get_varint(buf)) : 0;
+			int dy = (flags & Trace.y_changed) != 0 ? Trace.unzigzag(Trace.get_varint(buf)) : 0;
+			int dp = (flags & Trace.partner_changed) != 0 ? Trace.unzigzag(Trace.get_varint(buf)) : 0;
+			int dr = (flags & Trace.remaining_changed) != 0 ? Trace.unzigzag(Trace.get_varint(buf)) : 0;
+			int ds = (flags & Trace.score_changed) != 0 ? Trace.unzigzag(Trace.get_varint(buf)) : 0;
+			qx[i] = key ? dx : qx[i] + dx;
+			qy[i] = key ? dy : qy[i] + dy;
+			frame.partner[i] = key ? dp : frame.partner[i] + dp;
+			frame.remaining[i] = key ? dr : frame.remaining[i] + dr;
+			frame.score[i] = key ? ds : frame.score[i] + ds;
+			frame.enjoyed[i] = (flags & Trace.enjoyed) != 0;
+			frame.relation[i] = flags >>> Trace.relation_shift;
+		}
+		decoded = t;
+	}
+
+	// decode up to frame t going back to a keyframe only if needed
+	private void reach(int t) throws IOException
+	{
+		int key = t - t % keyframe;
+		if (decoded < key || decoded > t)
+			apply(key);
+		while (decoded != t)
+			apply(decoded + 1);
+	}
+
+	// frame t of the trace (the frame is reused by the next call)
+	public Frame frame(int t) throws IOException
+	{
+		if (t < 0 || t >= frames)
+			throw new IndexOutOfBoundsException("Frame " + t + " of " + frames);
+		int N = qx.length;
+		// previous locations are the locations of the frame before
+		if (t != 0) {
+			reach(t - 1);
+			for (int i = 0 ; i != N ; ++i) {
+				frame.px[i] = Trace.dequantize(qx[i]);
+				frame.py[i] = Trace.dequantize(qy[i]);
+			}
+		}
+		reach(t);
+		for (int i = 0 ; i != N ; ++i) {
+			frame.x[i] = Trace.dequantize(qx[i]);
+			frame.y[i] = Trace.dequantize(qy[i]);
+			if (t == 0) {
+				frame.px[i] = frame.x[i];
+				frame.py[i] = frame.y[i];
+			}
+		}
+		frame.turn = first + t;
+		return frame;
+	}
+
+	public static void main(String[] args)
+	{
+		File file = null;
+		long gui_refresh = 100;
+		int turn = -1;
+		Replay replay = null;
+		HTTPServer server = null;
+		try {
+			for (int a = 0 ; a != args.length ; ++a)
+				if (args[a].equals("--fps")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing FPS");
+					// as in Simulator, 0 FPS plays no further by itself (the
+					// slider shows another frame)
+					double gui_fps = Double.parseDouble(args[a]);
+					gui_refresh = gui_fps > 0.0 ? Math.round(1000.0 / gui_fps) : -1;
+				} else if (args[a].equals("--turn")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing turn");
+					turn = Integer.parseInt(args[a]);
+				} else if (file == null && !args[a].startsWith("-"))
+					file = new File(args[a]);
+				else throw new IllegalArgumentException("Unknown argument: " + args[a]);
+			if (file == null)
+				throw new IllegalArgumentException("Missing trace file");
+			replay = new Replay(file);
+			if (turn < 0) turn = replay.first();
+			if (turn < replay.first() || turn >= replay.first() + replay.frames())
+				throw new IllegalArgumentException("Invalid turn");
+			server = new HTTPServer(replay.handler(turn - replay.first(),
+			                                       gui_refresh));
+			Gui.assets(server);
+			System.err.println("HTTP port: " + server.port());
+			if (Desktop.isDesktopSupported() &&
+			    Desktop.getDesktop().isSupported(Desktop.Action.BROWSE))
+				Desktop.getDesktop().browse(new URI("http://localhost:" + server.port() + "/?replay"));
+		} catch (Exception e) {
+			System.err.println("Error during setup: " + e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+		// serve until interrupted
+		server.run();
+	}
+
+	private static ByteBuffer text(String s)
+	{
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// data.txt is the frame playback starts from, data.txt?turn=t the frame
+	// of turn t (viewers ask for the turn after theirs to play forward)
+	// turns.txt is the first and the last turn
+	private HTTPServer.Handler handler(final int start, final long gui_refresh)
+	{
+		return new HTTPServer.Handler() {
+			public ByteBuffer handle(String path) throws IOException {
+				if (path.equals("turns.txt"))
+					return text(first + "," + (first + frames - 1));
+				int t = start;
+				if (path.startsWith("data.txt?turn="))
+					try {
+						t = Math.max(0, Math.min(frames - 1,
+						                         Integer.parseInt(path.substring(14)) - first));
+					} catch (NumberFormatException e) {
+						return null;
+					}
+				else if (!path.equals("data.txt"))
+					return null;
+				boolean last = t == frames - 1;
+				return text(frame(t).text(last ? -1 : gui_refresh));
+			}};
+	}
+}
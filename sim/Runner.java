@@ -0,0 +1,196 @@
+package sqdance.sim;
+
+import java.lang.management.*;
+import java.util.concurrent.*;
+
+// Calls into a player with a time limit on an executor of its own
+// A call that runs out of time is left running and no other call starts
+// until it returns, so the player is never called concurrently
+// Timeouts are thrown to the caller, which decides what to do with them
+//
+// Limits are on the CPU time of the player thread, so a loaded host or a
+// GC pause does not fail a player that did not use its time; the wall
+// clock only bounds players that block (wall_factor times the limit)
+// Calls run on one platform thread because the CPU time of a virtual
+// thread cannot be measured
+
+class Runner {
+
+	// what the game does when the player runs out of time
+	public static final int abort = 0;  // end the game with an error
+	// everyone stays put this turn; the player is not told, so its next
+	// call sees state that is stale to what its late call expected
+	public static final int skip = 1;
+	public static final int record = 2; // count it and wait for the moves
+	private static final String[] policies = {"abort", "skip", "record"};
+
+	// wall clock limit of a call relative to its CPU limit
+	private static final int wall_factor = 10;
+
+	private static final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	private static final com.sun.management.ThreadMXBean allocation =
+		bean instanceof com.sun.management.ThreadMXBean &&
+		((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported() ?
+		(com.sun.management.ThreadMXBean) bean : null;
+
+	private final ExecutorService executor;
+	private final long budget;
+	private Future <?> pending = null;
+	// the last call started and has not returned yet
+	// (a cancelled future is done even while its call still runs)
+	private volatile boolean started = false;
+	private volatile boolean running = false;
+	// player thread and its CPU time when the last call started
+	private volatile long thread_id = -1;
+	private volatile long cpu_start = 0;
+	// CPU time and allocated bytes of the last call that returned and
+	// CPU time of all calls (written by the player thread)
+	private volatile long cpu = 0;
+	private volatile long allocated = 0;
+	private volatile long spent = 0;
+
+	// budget -> CPU nanoseconds for all calls (0 for no limit)
+	public Runner(long budget)
+	{
+		this.budget = budget;
+		if (bean.isThreadCpuTimeSupported() && !bean.isThreadCpuTimeEnabled())
+			bean.setThreadCpuTimeEnabled(true);
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					// never keep the JVM alive for an idle player thread
+					Thread thread = new Thread(r, "player");
+					thread.setDaemon(true);
+					return thread;
+				}});
+	}
+
+	// timeout policy by name
+	public static int policy(String name)
+	{
+		for (int p = 0 ; p != policies.length ; ++p)
+			if (policies[p].equals(name)) return p;
+		throw new IllegalArgumentException("Unknown timeout policy: " + name);
+	}
+
+	// whether a call that ran out of time has not returned yet
+	public boolean busy()
+	{
+		// a call cancelled before it started never runs
+		return running && (started || !pending.isDone());
+	}
+
+	// whether the calls used all of the budget
+	public boolean exhausted()
+	{
+		return budget > 0 && spent >= budget;
+	}
+
+	// CPU nanoseconds of the last call that returned
+	public long cpu()
+	{
+		return cpu;
+	}
+
+	// bytes allocated by the last call that returned (-1 if unknown)
+	public long allocated()
+	{
+		return allocated;
+	}
+
+	// CPU nanoseconds of all calls that returned
+	public long spent()
+	{
+		return spent;
+	}
+
+	// CPU time of the player thread (wall clock if it cannot be measured)
+	private static long cpu_time(long id)
+	{
+		long t = id < 0 ? -1 : bean.getThreadCpuTime(id);
+		return t < 0 ? System.nanoTime() : t;
+	}
+
+	private static long allocated_bytes(long id)
+	{
+		return allocation == null ? -1 : allocation.getThreadAllocatedBytes(id);
+	}
+
+	// limit -> CPU milliseconds of the call
+	// (throws) TimeoutException if the call used more, the budget ran out,
+	//          the wall clock limit passed or the last call is still
+	//          running, exceptions of the call as they are
+	public <T> T call(final Callable <T> task, long limit) throws Exception
+	{
+		if (limit < 0) throw new IllegalArgumentException();
+		if (busy() || exhausted()) throw new TimeoutException();
+		started = false;
+		running = true;
+		Future <T> future = executor.submit(new Callable <T> () {
+				public T call() throws Exception {
+					long id = Thread.currentThread().getId();
+					long bytes = allocated_bytes(id);
+					cpu_start = cpu_time(id);
+					thread_id = id;
+					started = true;
+					try {
+						return task.call();
+					} finally {
+						long used = cpu_time(id) - cpu_start;
+						cpu = used;
+						allocated = bytes < 0 ? -1 : allocated_bytes(id) - bytes;
+						spent = spent + used;
+						running = false;
+					}
+				}});
+		pending = future;
+		long limit_ns = limit * 1000000;
+		long wall_end = System.nanoTime() + limit_ns * wall_factor;
+		// the thread cannot use more CPU time than the wall clock passing,
+		// so wait for what is left of the limit and check again
+		long wait = limit_ns;
+		if (budget > 0) wait = Math.min(wait, budget - spent);
+		for (;;) {
+			try {
+				return result(future, Math.max(wait, 1000000));
+			} catch (TimeoutException e) {
+				long used = started ? cpu_time(thread_id) - cpu_start : 0;
+				long left = limit_ns - used;
+				if (budget > 0) left = Math.min(left, budget - spent - used);
+				long now = System.nanoTime();
+				if (left <= 0 || now >= wall_end) throw e;
+				wait = Math.min(left, wall_end - now);
+			}
+		}
+	}
+
+	// wait for the last call with no time limit
+	public Object await() throws Exception
+	{
+		return pending == null ? null : result(pending, -1);
+	}
+
+	// interrupt the last call if it is still running
+	public void cancel()
+	{
+		if (pending != null) pending.cancel(true);
+	}
+
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+
+	// timeout -> nanoseconds (negative for none)
+	private static <T> T result(Future <T> future, long timeout) throws Exception
+	{
+		try {
+			return timeout < 0 ? future.get() :
+				future.get(timeout, TimeUnit.NANOSECONDS);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Library of enjoyment graphs made once and kept in a directory, so that
+// games with the same (participants, friends, seed) start at once and
+// every player faces the same graph
+// The graph only depends on those three, so a stored graph is the one
+// the simulator would make; enjoyment per turn and in total is applied
+// when a graph is loaded
+// Files are read through a memory mapping and written to a temporary file
+// that is renamed, so concurrent games never see a partial file
+//
+// file:   magic, version, participants, friends, seed (two ints), then the
+//         soulmate of every dancer, then the sorted friends of every dancer
+//         (all big endian ints)
+//
+// java sqdance.sim.Scenarios dir -d 88,1000 -f 0,10 --seeds 1..5 [--threads n]
+
+class Scenarios {
+
+	public static final int magic = 0x53515343; // "SQSC"
+	public static final int version = 1;
+	private static final int header = 6; // ints
+
+	private final File dir;
+
+	public Scenarios(File dir) throws IOException
+	{
+		if (!dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Cannot create scenario directory: " + dir);
+		this.dir = dir;
+	}
+
+	private File file(int participants, int friends, long seed)
+	{
+		return new File(dir, participants + "-" + friends + "-" + seed + ".sqs");
+	}
+
+	// the stored graph, or a new one that is stored first
+	// eps, emax -> enjoyment per turn and in total for each relationship
+	public Enjoyment get(int participants, int friends, long seed, int threads,
+	                     int[] eps, int[] emax) throws Exception
+	{
+		Enjoyment W = load(participants, friends, seed, eps, emax);
+		if (W != null) return W;
+		W = Simulator.generate_enjoyment_array(friends, participants - friends - 2,
+		                                       new Random(seed), threads,
+		                                       new Edmonds(), eps, emax);
+		save(W, seed);
+		return W;
+	}
+
+	// (return) -> null if the graph was never stored
+	public Enjoyment load(int participants, int friends, long seed,
+	                      int[] eps, int[] emax) throws IOException
+	{
+		File file = file(participants, friends, seed);
+		if (!file.exists()) return null;
+		long bytes = 4L * (header + (long) participants * (friends + 1));
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+		                                            StandardOpenOption.READ)) {
+			if (channel.size() != bytes)
+				throw new IOException("Invalid scenario: " + file);
+			IntBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes)
+				.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+			if (in.get() != magic || in.get() != version ||
+			    in.get() != participants || in.get() != friends ||
+			    ((long) in.get() << 32 | (in.get() & 0xFFFFFFFFL)) != seed)
+				throw new IOException("Invalid scenario: " + file);
+			int[] soulmates = new int [participants];
+			in.get(soulmates);
+			int[][] F = new int [participants][friends];
+			for (int i = 0 ; i != participants ; ++i)
+				in.get(F[i]);
+			return new Enjoyment(F, soulmates, eps, emax);
+		}
+	}
+
+	public void save(Enjoyment W, long seed) throws IOException
+	{
+		int N = W.size();
+		int f = W.friends(0).length;
+		File file = file(N, f, seed);
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp), 1 << 16))) {
+				out.writeInt(magic);
+				out.writeInt(version);
+				out.writeInt(N);
+				out.writeInt(f);
+				out.writeLong(seed);
+				for (int i = 0 ; i != N ; ++i)
+					out.writeInt(W.soulmate(i));
+				for (int i = 0 ; i != N ; ++i)
+					for (int j : W.friends(i))
+						out.writeInt(j);
+			}
+			Files.move(temp.toPath(), file.toPath(),
+			           StandardCopyOption.REPLACE_EXISTING,
+			           StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	// make every graph of the sweep that is not stored yet
+	public static void main(String[] args)
+	{
+		File dir = null;
+		long[] participants = {88};
+		long[] friends = {10};
+		long[] seeds = {0};
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			for (int a = 0 ; a != args.length ; ++a)
+				if (args[a].equals("-f") || args[a].equals("--friends")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing number of friends");
+					friends = Batch.values(args[a]);
+				} else if (args[a].equals("-d") || args[a].equals("--participants")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing number of total participants");
+					participants = Batch.values(args[a]);
+				} else if (args[a].equals("--seeds")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing seeds");
+					seeds = Batch.values(args[a]);
+				} else if (args[a].equals("--threads")) {
+					if (++a == args.length)
+						throw new IllegalArgumentException("Missing number of threads");
+					threads = Integer.parseInt(args[a]);
+					if (threads <= 0)
+						throw new IllegalArgumentException("Invalid number of threads");
+				} else if (dir == null && !args[a].startsWith("-"))
+					dir = new File(args[a]);
+				else throw new IllegalArgumentException("Unknown argument: " + args[a]);
+			if (dir == null)
+				throw new IllegalArgumentException("Missing scenario directory");
+			Scenarios library = new Scenarios(dir);
+			SimulationEngine.Config config = new SimulationEngine.Config();
+			for (long d : participants)
+				for (long f : friends) {
+					if (f < 0 || d <= f + 1 || d % 2 != 0) {
+						System.err.println("Skipping " + d + " participants with " +
+						                   f + " friends");
+						continue;
+					}
+					for (long seed : seeds) {
+						if (library.file((int) d, (int) f, seed).exists()) continue;
+						long start = System.nanoTime();
+						library.get((int) d, (int) f, seed, threads,
+						            config.eps(), config.emax());
+						System.err.println(String.format(Locale.ROOT,
+							"Made %d participants, %d friends, seed %d in %.3f s",
+							d, f, seed, (System.nanoTime() - start) * 1e-9));
+					}
+				}
+		} catch (Exception e) {
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// One game that can be driven from any code in the same JVM
+// Built from a configuration, given a player, then played turn by turn
+// or to the end; the state is read through views that never expose the
+// arrays of the game
+// Engines share nothing, so many games can run concurrently
+// A checkpoint of an engine between turns forks any number of engines
+// that continue from there
+//
+//   SimulationEngine.Config config = new SimulationEngine.Config();
+//   config.participants = 1000;
+//   config.seed = 42;
+//   SimulationEngine engine = new SimulationEngine(config);
+//   engine.init(new sqdance.g1.Player());
+//   engine.run_to_end();
+//   int score = engine.score(0);
+//   engine.close();
+
+public class SimulationEngine {
+
+	// parameters of a game (read when the engine is built)
+	public static class Config {
+
+		public long seed = new Random().nextLong();
+		public int participants = 88;
+		public int friends = 10;
+		public int room_side = 20;
+		public int turns = 1800;
+		// enjoyment per turn and in total for each relationship
+		public int soulmate_eps = 6;
+		public int soulmate_emax = 10800;
+		public int friend_eps = 4;
+		public int friend_emax = 200;
+		public int stranger_eps = 3;
+		public int stranger_emax = 60;
+		// threads of the rules of a turn
+		public int threads = 1;
+		// name of the player in errors
+		public String group = "player";
+		// what a turn the player runs out of time does (abort, skip, record)
+		// (skipped turns are not told to the player, so its next call sees
+		// state its late call did not expect: nobody moved, new scores)
+		public String timeout_policy = "abort";
+		// CPU seconds of the player for the game (0 for no limit)
+		public double cpu_budget = 0;
+		// directory of stored enjoyment graphs (null to always generate)
+		public File scenarios = null;
+		// events of the game (null for none)
+		EventLog log = null;
+		// timing of the turns (null for a new one)
+		Metrics metrics = null;
+
+		int[] eps()
+		{
+			int[] eps = new int [3];
+			eps[Enjoyment.stranger] = stranger_eps;
+			eps[Enjoyment.friend] = friend_eps;
+			eps[Enjoyment.soulmate] = soulmate_eps;
+			return eps;
+		}
+
+		int[] emax()
+		{
+			int[] emax = new int [3];
+			emax[Enjoyment.stranger] = stranger_emax;
+			emax[Enjoyment.friend] = friend_emax;
+			emax[Enjoyment.soulmate] = soulmate_emax;
+			return emax;
+		}
+	}
+
+	private final String group;
+	private final int N;
+	private final int room_side;
+	private final int turns;
+	private final int threads;
+	private final int timeout_policy;
+	private final long cpu_budget;
+	private final EventLog log;
+	private final Metrics metrics;
+	private final Enjoyment W;
+	private final int max_score;
+	private Game game = null;
+
+	// generates the relationships of the dancers
+	// (throws) IllegalArgumentException if the configuration is invalid
+	public SimulationEngine(Config config) throws Exception
+	{
+		if (config.participants <= config.friends + 1 ||
+		    config.participants % 2 != 0)
+			throw new IllegalArgumentException("Invalid number of total participants");
+		if (config.friends < 0)
+			throw new IllegalArgumentException("Invalid number of friends");
+		if (config.turns <= 0)
+			throw new IllegalArgumentException("Invalid number of turns");
+		if (config.room_side <= 0)
+			throw new IllegalArgumentException("Invalid room side");
+		if (config.threads <= 0)
+			throw new IllegalArgumentException("Invalid number of threads");
+		if (!(config.cpu_budget >= 0))
+			throw new IllegalArgumentException("Invalid CPU budget");
+		group = config.group;
+		N = config.participants;
+		room_side = config.room_side;
+		turns = config.turns;
+		threads = config.threads;
+		timeout_policy = Runner.policy(config.timeout_policy);
+		cpu_budget = Math.round(config.cpu_budget * 1e9);
+		log = config.log;
+		metrics = config.metrics == null ? new Metrics() : config.metrics;
+		if (config.scenarios != null)
+			W = new Scenarios(config.scenarios).get(N, config.friends,
+			                                        config.seed, threads,
+			                                        config.eps(), config.emax());
+		else
+			W = Simulator.generate_enjoyment_array(config.friends,
+			                                       N - config.friends - 2,
+			                                       new Random(config.seed), threads,
+			                                       new Edmonds(), config.eps(),
+			                                       config.emax());
+		max_score = W.max_score();
+	}
+
+	// a branch of a checkpoint with its player and enjoyment
+	SimulationEngine(Checkpoint checkpoint, Enjoyment W, Game game,
+	                 EventLog log, Metrics metrics)
+	{
+		group = checkpoint.group;
+		N = W.size();
+		room_side = checkpoint.room_side;
+		turns = checkpoint.turns;
+		threads = checkpoint.threads;
+		timeout_policy = checkpoint.timeout_policy;
+		cpu_budget = checkpoint.cpu_budget;
+		this.log = log;
+		this.metrics = metrics;
+		this.W = W;
+		max_score = W.max_score();
+		this.game = game;
+	}
+
+	// the state at the start of the next turn
+	// (throws) NotSerializableException if the player cannot be copied,
+	//          IllegalStateException if a late call of the player still runs
+	public Checkpoint checkpoint() throws IOException
+	{
+		Game.State state = game().state();
+		byte[] player = Checkpoint.serialize(game.player());
+		return new Checkpoint(group, room_side, turns, threads, timeout_policy,
+		                      cpu_budget, state, W.fork(), player);
+	}
+
+	// initialize the player and the starting locations
+	public void init(Player player) throws Exception
+	{
+		init(instance(player));
+	}
+
+	public void init(ArrayPlayer player) throws Exception
+	{
+		init(instance(player));
+	}
+
+	// player_class -> instantiated within the time limit of init
+	void init(Class <?> player_class) throws Exception
+	{
+		init(Game.factory(player_class));
+	}
+
+	private static Callable <Object> instance(final Object player)
+	{
+		if (player == null)
+			throw new NullPointerException();
+		return new Callable <Object> () {
+				public Object call() {
+					return player;
+				}};
+	}
+
+	private void init(Callable <?> player) throws Exception
+	{
+		if (game != null)
+			throw new IllegalStateException("Player already initialized");
+		game = new Game(group, player, W, room_side, threads, log, metrics,
+		                timeout_policy, cpu_budget);
+	}
+
+	private Game game()
+	{
+		if (game == null)
+			throw new IllegalStateException("Player not initialized");
+		return game;
+	}
+
+	// play one turn
+	public void step() throws Exception
+	{
+		if (done())
+			throw new IllegalStateException("Game over");
+		if (log != null) log.turn(game.turn());
+		game.play(1);
+	}
+
+	// play the remaining turns (turns the player holds are played at
+	// once unless every turn is logged)
+	public void run_to_end() throws Exception
+	{
+		run_to(turns);
+	}
+
+	// play until the given turn starts (or the game ends)
+	public void run_to(int turn) throws Exception
+	{
+		turn = Math.min(turn, turns);
+		while (game().turn() < turn) {
+			if (log != null) step();
+			else game.play(turn - game.turn());
+		}
+	}
+
+	public boolean done()
+	{
+		return game().turn() >= turns;
+	}
+
+	public void close()
+	{
+		if (game != null) game.close();
+	}
+
+	// turns played
+	public int turn()
+	{
+		return game == null ? 0 : game.turn();
+	}
+
+	public int turns()
+	{
+		return turns;
+	}
+
+	public int size()
+	{
+		return N;
+	}
+
+	public int room_side()
+	{
+		return room_side;
+	}
+
+	// the score of a dancer that enjoys everyone fully
+	public int max_score()
+	{
+		return max_score;
+	}
+
+	public double x(int i)
+	{
+		return game().x()[i];
+	}
+
+	public double y(int i)
+	{
+		return game().y()[i];
+	}
+
+	public int score(int i)
+	{
+		return game().scores()[i];
+	}
+
+	// who i danced with in the last turn (i if nobody)
+	public int partner(int i)
+	{
+		return game().partners()[i];
+	}
+
+	// whether i gained enjoyment in the last turn
+	public boolean enjoyed(int i)
+	{
+		return game().enjoyed()[i];
+	}
+
+	public boolean met_soulmate(int i)
+	{
+		return game().met_soulmate()[i];
+	}
+
+	public int soulmate(int i)
+	{
+		return W.soulmate(i);
+	}
+
+	// whether i and j are friends (soulmates are not)
+	public boolean friends(int i, int j)
+	{
+		return W.friends(i, j);
+	}
+
+	// enjoyment i and j can still give each other
+	public int remaining(int i, int j)
+	{
+		return W.remaining(i, j);
+	}
+
+	// the game for frames of the GUI and traces
+	Game state()
+	{
+		return game();
+	}
+
+	Metrics metrics()
+	{
+		return metrics;
+	}
+}
@@ -9,57 +9,57 @@ import java.util.concurrent.*;
 
 class Simulator {
 
-    private static final String root = "sqdance";
-
-    // simulation parameters
-    private static final int soulmate_eps = 6;
-    private static final int soulmate_emax = 10800;
-    private static final int friend_eps = 4;
-    private static final int friend_emax = 200;
-    private static final int stranger_eps = 3;
-    private static final int stranger_emax = 60;
-    private static final int claustrophobic_eps = -5;
-    private static final double personal_bubble = 0.1;
-    
-    // time limits
-    private static final int init_timeout = 10000;
-    private static final int play_timeout = 1000;
+    static final String root = "sqdance";
 
     public static void main(String[] args)
     {
-	int friends = 10;
-	int participants = 88;
+	SimulationEngine.Config config = new SimulationEngine.Config();
 	boolean verbose = false;
-	int room_side = 20;
-	int turns = 1800;
 	boolean gui = false;
 	long gui_refresh = 100;
 	String[] groups = null;
 	PrintStream out = null;
-	Class <Player> player_class = null;
-	String group = "g0";
+	File trace = null;
+	File log_file = null;
+	int checkpoint_turn = -1;
+	File checkpoint_file = null;
+	Checkpoint resume = null;
+	boolean seeded = false;
+	Class <?> player_class = null;
+	config.group = "g0";
 	try {
 	    for (int a = 0 ; a != args.length ; ++a)
 		if (args[a].equals("-f") || args[a].equals("--friends")) {
 		    if (++a == args.length)
 			throw new IllegalArgumentException("Missing number of friends");
-		    friends = Integer.parseInt(args[a]);
-		    if (friends < 0)
+		    config.friends = Integer.parseInt(args[a]);
+		    if (config.friends < 0)
 			throw new IllegalArgumentException("Invalid number of friends");
 		} else if (args[a].equals("-d") || args[a].equals("--participants")) {
 		    if (++a == args.length)
 			throw new IllegalArgumentException("Missing number of total participants");
-		    participants = Integer.parseInt(args[a]);
+		    config.participants = Integer.parseInt(args[a]);
 		} else if (args[a].equals("-g") || args[a].equals("--group")) {
 		    if (++a == args.length) 
 			throw new IllegalArgumentException("Missing group number");
-		    group = args[a];
+		    config.group = args[a];
 		} else if (args[a].equals("-t") || args[a].equals("--turns")) {
 		    if (++a == args.length)
 			throw new IllegalArgumentException("Missing number of turns");
-		    turns = Integer.parseInt(args[a]);
-		    if (turns <= 0)
+		    config.turns = Integer.parseInt(args[a]);
+		    if (config.turns <= 0)
 			throw new IllegalArgumentException("Invalid number of turns");
+		} else if (args[a].equals("--seed")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing seed");
+		    config.seed = Long.parseLong(args[a]);
+		    seeded = true;
+		} else if (args[a].equals("--threads")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing number of threads");
+		    config.threads = Integer.parseInt(args[a]);
+		    if (config.threads <= 0)
+			throw new IllegalArgumentException("Invalid number of threads");
 		} else if (args[a].equals("--fps")) {
 		    if (++a == args.length)
 			throw new IllegalArgumentException("Missing FPS");
@@ -70,22 +70,78 @@ class Simulator {
 		    if (++a == args.length)
 			throw new IllegalArgumentException("Invalid file path");
 		    out = new PrintStream(new FileOutputStream(args[a], false));
+		} else if (args[a].equals("--trace")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing trace file");
+		    trace = new File(args[a]);
+		} else if (args[a].equals("--log")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing log file");
+		    log_file = new File(args[a]);
+		} else if (args[a].equals("--checkpoint")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing checkpoint turn");
+		    checkpoint_turn = Integer.parseInt(args[a]);
+		    if (checkpoint_turn < 0)
+			throw new IllegalArgumentException("Invalid checkpoint turn");
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing checkpoint file");
+		    checkpoint_file = new File(args[a]);
+		} else if (args[a].equals("--resume")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing checkpoint file");
+		    resume = Checkpoint.load(new File(args[a]));
+		} else if (args[a].equals("--scenarios")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing scenario directory");
+		    config.scenarios = new File(args[a]);
+		} else if (args[a].equals("--timeout-policy")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing timeout policy");
+		    Runner.policy(args[a]);
+		    config.timeout_policy = args[a];
+		} else if (args[a].equals("--cpu-budget")) {
+		    if (++a == args.length)
+			throw new IllegalArgumentException("Missing CPU budget");
+		    double seconds = Double.parseDouble(args[a]);
+		    if (!(seconds > 0))
+			throw new IllegalArgumentException("Invalid CPU budget");
+		    config.cpu_budget = seconds;
 		} else if (args[a].equals("--gui")) gui = true;
 		else if (args[a].equals("--verbose")) verbose = true;
 		else throw new IllegalArgumentException("Unknown argument: " + args[a]);
-	    if (participants <= friends + 1)
+	    // the game of the checkpoint continues
+	    if (resume != null) {
+		config.group = resume.group();
+		config.participants = resume.size();
+		config.friends = resume.friends();
+	    }
+	    // a checkpoint at a turn the game never starts is never saved
+	    if (checkpoint_turn >= 0) {
+		int first = resume == null ? 0 : resume.turn();
+		int last = resume == null ? config.turns : resume.turns;
+		if (checkpoint_turn < first || checkpoint_turn > last)
+		    throw new IllegalArgumentException("Checkpoint turn not in the game (" +
+						       first + " to " + last + ")");
+	    }
+	    if (config.participants <= config.friends + 1 ||
+		config.participants % 2 != 0)
 		throw new IllegalArgumentException("Invalid number of total participants");	    
-	    player_class = load(group);
+	    // a random seed would store a graph no other game uses
+	    if (config.scenarios != null && !seeded && resume == null)
+		throw new IllegalArgumentException("Scenarios need a seed");
+	    player_class = load(config.group);
 	} catch (Exception e) {
 	    System.err.println("Error during setup: " + e.getMessage());
 	    e.printStackTrace();
 	    System.exit(1);
 	}
 	
-	int strangers = participants - friends - 2;
+	int participants = config.participants;
+	int strangers = participants - config.friends - 2;
 	// print info
 	System.out.println("Total participants: " + participants);
-	System.out.println("Friends: " + friends);
+	System.out.println("Friends: " + config.friends);
 	System.out.println("Strangers: " + strangers);
 	if (!gui)
 	    System.out.println("GUI: disabled");
@@ -106,18 +162,28 @@ class Simulator {
 	int[] score = new int [participants];
 	boolean[] met_soulmate = new boolean [participants];
 	int max_score = -1;
+	EventLog log = null;
+	Metrics metrics = new Metrics();
+	config.metrics = metrics;
 	try {
-	    max_score = game(group, player_class, friends, strangers,
-			     room_side, turns, score, met_soulmate,
-			     gui, gui_refresh, verbose);
+	    if (verbose || log_file != null)
+		log = config.log = new EventLog(verbose ? System.out : null, log_file);
+	    max_score = game(config, resume, player_class, score, met_soulmate,
+			     gui, gui_refresh, trace, checkpoint_turn,
+			     checkpoint_file);
+	    if (log != null) log.close();
 	} catch (Exception e) {
 	    System.err.println("Error during the game: " + e.getMessage());
 	    e.printStackTrace();
+	    if (log != null)
+		try {
+		    log.close();
+		} catch (IOException f) {}
 	    System.exit(1);
 	}
 	int min_score = Integer.MAX_VALUE;
 	for (int i = 0 ; i != score.length ; ++i) {
-	    out.println("Player " + i + " (" + group +
+	    out.println("Player " + i + " (" + config.group +
 			") scored: " + score[i] +
 			(score[i] == max_score ? " (maximum score) " : " ") +
 			(met_soulmate[i] ? "[soulmate dance]" : ""));
@@ -125,118 +191,47 @@ class Simulator {
 		min_score = score[i];
 	}
 	out.println("Minimum score: " + min_score);
+	// where the time went in headless runs (after the results, as
+	// standard error is closed when they go to a file)
+	if (!gui) metrics.summary(out);
 	if (out != System.err) out.close();	
 	System.exit(0);
     }
 
-    private static final Random random = new Random();
-
-    private static int game(String group,
-			    Class <Player> player_class,
-			    int friends,
-			    int strangers,
-			    int room_side,
-			    int turns,
-			    int[] score,
-			    boolean[] met_soulmate,
-			    boolean gui,
-			    long gui_refresh,
-			    boolean verbose) throws Exception
+    // play a game with the GUI and trace of the options
+    // resume -> continue the game of a checkpoint (null for a new game)
+    // score, met_soulmate -> results of every dancer
+    // checkpoint_turn -> turn to save checkpoint_file at (-1 for none)
+    // (return) -> maximum score
+    static int game(SimulationEngine.Config config,
+		    Checkpoint resume,
+		    Class <?> player_class,
+		    int[] score,
+		    boolean[] met_soulmate,
+		    boolean gui,
+		    long gui_refresh,
+		    File trace,
+		    int checkpoint_turn,
+		    File checkpoint_file) throws Exception
     {
-	int N = friends + strangers + 2;
+	SimulationEngine engine;
+	if (resume != null)
+	    engine = resume.fork(config.log, config.metrics);
+	else {
+	    // initialize friends, soulmates and enjoyment
+	    engine = new SimulationEngine(config);
+	    // initialize players
+	    engine.init(player_class);
+	}
+	int N = engine.size();
 	if (score.length != N || met_soulmate.length != N) 
 	    throw new IllegalArgumentException();
-	PrintStream out = verbose ? System.out : null;
-	// initialize enjoyment and friends array
-	int[][] W = generate_enjoyment_array(friends, strangers);
-	int[][] EPS = new int[N][N];
-	for (int i=0; i<N; i++) {
-	    for (int j=i+1; j<N; j++) {
-		if (W[i][j] == stranger_emax)
-		    EPS[i][j] = EPS[j][i] = stranger_eps;
-		else if (W[i][j] == friend_emax)
-		    EPS[i][j] = EPS[j][i] = friend_eps;
-		else if (W[i][j] == soulmate_emax)
-		    EPS[i][j] = EPS[j][i] = soulmate_eps;
-		else {
-		    System.err.println("W[i][j] = " + W[i][j]);
-		    throw new RuntimeException("Enjoyment array invalid.");
-		}
-	    }
-	}
-	boolean[][] F = new boolean [N][N];
-	int[] Sm = new int [N];
-	for (int i = 0 ; i != N ; ++i)
-	    for (int j = 0 ; j != i ; ++j)
-		if (W[i][j] == friend_emax) {
-		    verify(W[j][i] == friend_emax);
-		    F[i][j] = F[j][i] = true;
-		} else if (W[i][j] == soulmate_emax) {
-		    verify(W[j][i] == soulmate_emax);
-		    Sm[i] = j;
-		    Sm[j] = i;
-		}
-	// compute max score
-	int max_score = 0;
-	for (int i = 0 ; i != N ; ++i)
-	    max_score += W[i][0];
-	// initialize players
-	Timer thread = new Timer();
-	thread.start();
-	thread.call_start(new Callable <Player> () {
-		public Player call() throws Exception {
-		    Player p = player_class.newInstance();
-		    p.init(N, room_side);
-		    return p;
-		}});
-	final Player player = thread.call_wait(init_timeout);
-	Point[] sL = null;
-	Point[] L = null;
-	Point[] Lp = new Point[N]; // previous location of player, for drawing movement lines
-	thread.call_start(new Callable <Point[]> () {
-		public Point[] call() throws Exception {
-		    return player.generate_starting_locations();
-		}});
-	try {
-	    sL = thread.call_wait(init_timeout);
-	}
-	catch (Exception e) {
-	    if (e instanceof TimeoutException) {
-		System.err.println("Player timed out during assigning initial starting locations.");
-		System.exit(1);
-	    }
-	    else {
-		e.printStackTrace();
-		System.exit(1);
-	    }
-	}		    
-	if (sL.length != N)
-	    throw new RuntimeException("Player submitted invalid list of initial locations.");
-	L = new Point[N];
-	for (int i=0; i<N; i++) {
-	    if (sL[i].x < 0 || sL[i].x > room_side || sL[i].y < 0 || sL[i].y > room_side) 
-		throw new IllegalArgumentException("Player submitted invalid initial location.");
-	    L[i] = new Point(sL[i].x, sL[i].y, i);
-	    Lp[i] = L[i];
-	}
-	// play the game
-	Point p_0 = new Point(0.0, 0.0);
-	Point[] M = new Point [N]; // movement vector
-	boolean[] C = new boolean [N];
-	int[] P = new int[N]; // partner_id; default -1 if no partner
-	int[] E = new int[N]; // enjoyment gained in last interval
-	for (int i=0; i<N; i++) {
-	    P[i] = i;
-	    E[i] = 0;
-	}
-	for (int i = 0 ; i != N ; ++i) {
-	    score[i] = 0;
-	    M[i] = new Point(0.0, 0.0);
-	}
+	int max_score = engine.max_score();
+	Metrics metrics = engine.metrics();
 	// initialize gui
-	HTTPServer server = null;
+	Gui server = null;
 	if (gui) {
-	    server = new HTTPServer();
+	    server = new Gui(gui_refresh, metrics);
 	    System.err.println("HTTP port: " + server.port());
 	    // try to open web browser automatically
 	    if (!Desktop.isDesktopSupported())
@@ -248,194 +243,48 @@ class Simulator {
 		Desktop.getDesktop().browse(uri);
 	    }
 	}
-	for (int turn = 0 ; turn != turns ; ++turn) {
-	    String clock = clock(turn * 6);
-	    // GUI state
-	    if (gui) gui(server, state(group, L, Lp, score, max_score, W, C,
-				       F, Sm, room_side, clock, gui_refresh));
-	    if (out != null) println(out, clock);
-	    // call play function of players
-	    final Point[] curr_L = L;
-	    final int[] curr_score = score;
-	    thread.call_start(new Callable <Point[]>() {
-		    public Point[] call() throws Exception {
-			return player.play(curr_L,curr_score,P,E);
-		    }});	    
-	    try {
-		M = thread.call_wait(play_timeout);
-	    } catch (Exception e) {
-		if (e instanceof TimeoutException) {
-		    System.err.println(group +
-				       " timed out during \"play\"!");
-		    System.exit(1);
-		}
-		else {
-		    e.printStackTrace();
-		    System.exit(1);
-		}
-	    }
-	    // validate move;
-	    for (int i=0; i<N; i++) {
-		Point m = M[i];
-		M[i] = null;
-		C[i] = false;
-		if (m == null)
-		    throw new IllegalArgumentException(i + ": Unspecified action");
-		else if (Double.isNaN(m.x) || Double.isInfinite(m.x))
-		    throw new IllegalArgumentException(i + ": Undefined movement x");
-		else if (Double.isNaN(m.y) || Double.isInfinite(m.y))
-		    throw new IllegalArgumentException(i + ": Undefined movement y");
-		else if (L[i].x + m.x < 0)
-		    throw new IllegalArgumentException(i + ": Invalid movement: x < 0");
-		else if (L[i].y + m.y < 0)
-		    throw new IllegalArgumentException(i + ": Invalid movement: y < 0");
-		else if (L[i].x + m.x > room_side)
-		    throw new IllegalArgumentException(i + ": Invalid movement: x > " + room_side);
-		else if (L[i].y + m.y > room_side)
-		    throw new IllegalArgumentException(i + ": Invalid movement: y > " + room_side);
-		else if (distance_gt(m, p_0, 2.0))
-		    throw new IllegalArgumentException(i + ": Invalid movement vector of " + m.x + "," + m.y);
-		else M[i] = m;
-	    }
-	    // assign stationary players to try to dance with closest
-	    for (int i=0; i<N; i++) {
-		if (M[i] == null) continue;
-		if (distance_gt(new Point(0,0), M[i], 0.000001)) {
-		    M[i].id = i; // cannot dance if moving, so assign to own id
-		    continue;
-		}
-		int closest_index = -1;
-		double closest_dist = Double.MAX_VALUE;
-		for (int j=0; j<N; j++) {
-		    if (i == j) continue;
-		    if (distance_lt(L[i], L[j], closest_dist)) {
-			closest_dist = distance(L[i], L[j]);
-			closest_index = j;
-		    }
-		}
-		if (closest_dist > 0.5 && closest_dist < 2.0)
-		    M[i].id = closest_index;
-		else
-		    M[i].id = i;
-	    }
-	    
-	    // for null moves, player stays put and dances by himself
-	    for (int i=0; i<N; i++) {
-		if (M[i] == null) {
-		    M[i] = new Point(0.0, 0.0, i);
-		}
+	// record the game
+	Frame frame = new Frame(config.group, N, engine.room_side(), max_score);
+	Trace recorder = trace == null ? null :
+	    new Trace(trace, config.group, N, engine.room_side(), max_score);
+	// play the game (every turn is seen by the GUI or the trace)
+	while (!engine.done()) {
+	    if (engine.turn() == checkpoint_turn)
+		engine.checkpoint().save(checkpoint_file);
+	    if (!gui && recorder == null) {
+		engine.run_to(engine.turn() < checkpoint_turn ? checkpoint_turn :
+			      engine.turns());
+		continue;
 	    }
-	    // both players want to dance
-	    for (int i = 0 ; i != N ; ++i) {
-		int j = M[i].id;
-		if (i < j && M[j].id == i && M[i].id == j) {
-		    println(out, i + " and " + j + " want to dance");
-		}
-	    }
-	    // player wants to move or has to stay put
-	    for (int i = 0 ; i != N ; ++i)
-		if (M[i].id == i) {
-		    println(out, i + " moved from (" + L[i].x + ", " + L[i].y + ")"
-			    + " to (" + (L[i].x + M[i].x) + ", " + (L[i].y + M[i].y) + ")");
-		}
-	    // move all players that must now be processed
-	    for (int i = 0 ; i != N ; ++i) {
-		Lp[i] = L[i];
-		L[i] = new Point(L[i].x + M[i].x, L[i].y + M[i].y, M[i].id);
-	    }
-	    // update enjoyment points
-	    for (int i=0; i<N; i++) {
-		P[i] = i;
-		E[i] = 0;
-	    }
-	    for (int i = 0 ; i != N ; ++i) {
-		int j = M[i].id;
-		boolean c = true; // whether player i is dancing with j
-		if (i > j && M[j].id == i) // avoid double processing dance pairs, only do when i < j
-		    continue;
-		if (Sm[i] == j) {
-		    met_soulmate[i] = true;
-		    met_soulmate[j] = true;
-		}
-		// search for closest player to i
-		double dx = L[i].x - L[j].x;
-		double dy = L[i].y - L[j].y;
-		double d = dx * dx + dy * dy;
-		for (int k = 0 ; k < N && c ; ++k) {
-		    if (i != k && j != k) {
-			dx = L[i].x - L[k].x;
-			dy = L[i].y - L[k].y;
-			if (dx * dx + dy * dy <= personal_bubble * personal_bubble) { 
-			    println(out, i + " is feeling claustrophobic!");
-			    E[i] += claustrophobic_eps;
-			    score[i] += claustrophobic_eps;
-			    c = false;
-			    break; // lose claustrophobia points only once
-			}
-			if (dx * dx + dy * dy <= d) 
-			    c = false;
-		    }
-		}
-		if (i == j)
-		    continue;
-		if (M[j].id != i) {
-		    L[i].id = i;
-		    continue;
-		}
-		// search for closest player to j if (i,j) is a pair
-		for (int k = 0 ; k < N && c ; ++k) {
-		    if (i != k && j != k) {
-			dx = L[j].x - L[k].x;
-			dy = L[j].y - L[k].y;
-			if (dx * dx + dy * dy <= personal_bubble) { 
-			    println(out, j + " is feeling claustrophobic!");
-			    E[j] += claustrophobic_eps;
-			    score[j] += claustrophobic_eps;
-			    c = false;
-			    break; // lose claustrophobia points only once
-			}
-			if (dx * dx + dy * dy <= d) 
-			    c = false;
-		    }
-		}
-		// if c is still true, both players dance with each other
-		if (W[j][i] == 0 && c) { // still dance with each other but not enjoying it
-		    L[i].id = j;
-		    L[j].id = i;
-		    println(out, i + " and " + j + " do not enjoy dancing with each other anymore.");
-		}
-		else if (!c) { // cannot dance because of physical obstructions
-		    L[i].id = i;
-		    L[j].id = j;
-		    println(out, i + " and " + j + " cannot dance with each other right now.");
-		}
-		else {
-		    int w = EPS[i][j];
-		    E[i] = w;
-		    E[j] = w;
-		    P[i] = j;
-		    P[j] = i;
-		    W[j][i] -= w;
-		    W[i][j] -= w;
-		    score[j] += w;
-		    score[i] += w;
-		    C[j] = true;
-		    C[i] = true;
-		    L[j].id = i;
-		    L[i].id = j;
-		    println(out, i + " and " + j + " gained enjoyment.");
-		}
+	    // GUI state
+	    // (the GUI samples a frame only when it wants one)
+	    boolean sample = gui && server.wanted();
+	    long start = sample ? System.nanoTime() : 0;
+	    if (sample || recorder != null) frame.capture(engine.state());
+	    if (sample) {
+		server.publish(frame);
+		metrics.record(Metrics.gui, System.nanoTime() - start);
 	    }
+	    if (recorder != null) recorder.record(frame);
+	    engine.step();
 	}
+	if (engine.turn() == checkpoint_turn)
+	    engine.checkpoint().save(checkpoint_file);
+	if (gui || recorder != null) frame.capture(engine.state());
 	if (gui) {
-	    gui(server, state(group, L, Lp, score, max_score, W, C,
-			      F, Sm, room_side, clock(turns * 6), -1));
+	    server.finish(frame, Math.max(1000, 2 * gui_refresh));
 	    server.close();
 	}
+	if (recorder != null) recorder.close();
+	engine.close();
+	for (int i = 0 ; i != N ; ++i) {
+	    score[i] = engine.score(i);
+	    met_soulmate[i] = engine.met_soulmate(i);
+	}
 	return max_score;
     }
 
-    private static String clock(int seconds)
+    static String clock(int seconds)
     {
 	int hour =     seconds / 3600;
 	int minutes_hi =  (seconds % 3600) / 600;
@@ -446,47 +295,33 @@ class Simulator {
 	    + ":" + seconds_hi + "" + seconds_lo;
     }
 
-    private static void verify(boolean x)
+    // with the enjoyment of the default configuration
+    static Enjoyment generate_enjoyment_array (int friends, int strangers,
+					       Random random, int threads,
+					       Matcher matcher)
+	throws Exception
     {
-	return;
-	//if (x == false) throw new AssertionError();
+	SimulationEngine.Config config = new SimulationEngine.Config();
+	return generate_enjoyment_array(friends, strangers, random, threads,
+					matcher, config.eps(), config.emax());
     }
 
-    private static class Pair implements Comparable <Pair> {
-
-	public final int i;
-	public final double d;
-
-	public Pair(int i, double d)
-	{
-	    this.i = i;
-	    this.d = d;
-	}
-
-	public int compareTo(Pair p)
-	{
-	    return d < p.d ? -1 : (d > p.d ? 1 : 0);
-	}
-    }
-    
-    private static int[][] generate_enjoyment_array (int friends, int strangers)
+    // eps, emax -> enjoyment per turn and in total for each relationship
+    static Enjoyment generate_enjoyment_array (int friends, int strangers,
+					       Random random, int threads,
+					       Matcher matcher,
+					       int[] eps, int[] emax)
+	throws Exception
     {
 	if (friends < 0 || strangers < 0)
 	    throw new IllegalArgumentException();
 	// enforce symmetries
 	int N = friends + strangers + 2;
 	// generate the graph of friends and soulmates
-	boolean[][] F = random_symmetric_graph(N, friends + 1);
-	// initialize wisdom array using the graph
-	int[][] W = new int [N][N];
-	int[] Fc = new int [N];
-	for (int i = 0 ; i != N ; ++i)
-	    for (int j = 0 ; j != i ; ++j) {
-		W[i][j] = W[j][i] = F[i][j] ? friend_emax : -1;
-		verify(F[i][j] == F[j][i]);
-	    }
-	// create a random 1:1 mapping [0,N) -> [0,N)
+	int[][] F = RegularGraph.random(N, friends + 1, random.nextLong(), threads);
+	// create a random 1:1 mapping [0,N) -> [0,N) and its inverse
 	int[] M = new int [N];
+	int[] Mi = new int [N];
 	for (int i = 0 ; i != N ; ++i)
 	    M[i] = i;
 	for (int i = 0 ; i != N ; ++i) {
@@ -495,251 +330,35 @@ class Simulator {
 	    M[i] = M[j];
 	    M[j] = t;
 	}
-	// shuffle graph nodes using the random 1:1 mapping
-	boolean[][] Fm = new boolean [N][N];
 	for (int i = 0 ; i != N ; ++i)
-	    for (int j = 0 ; j != N ; ++j)
-		if (F[i][j]) {
-		    int mi = M[i];
-		    int mj = M[j];
-		    Fm[mi][mj] = true;
-		}
-	// convert graph to adjacency list
+	    Mi[M[i]] = i;
+	// convert graph to adjacency list with nodes shuffled by the mapping
 	int[][] G = new int [N][];
 	for (int i = 0 ; i != N ; ++i) {
-	    int k = 0;
-	    for (int j = 0 ; j != N ; ++j)
-		if (Fm[i][j]) k++;
-	    G[i] = new int [k];
-	    for (int j = k = 0 ; j != N ; ++j)
-		if (Fm[i][j]) G[i][k++] = j;
+	    int[] g = G[M[i]] = new int [F[i].length];
+	    for (int k = 0 ; k != g.length ; ++k)
+		g[k] = M[F[i][k]];
+	    Arrays.sort(g);
 	}
-	// find an edge cover using Edmonds max matching algorithm
-	int[] C = Edmonds.matching(G);
-	// convert edge cover to original graph and update wisdom
+	// find an edge cover using a perfect matching of the graph
+	int[] C = matcher.matching(G);
+	// convert edge cover to soulmates of the original graph
+	int[] Sm = new int [N];
 	for (int mi = 0 ; mi != N ; ++mi) {
 	    int mj = C[mi];
-	    verify(C[mj] == mi);
-	    if (mi < mj) {
-		int i = 0, j = 0;
-		while (M[i] != mi) i++;
-		while (M[j] != mj) j++;
-		verify(F[i][j] && F[j][i]);
-		verify(W[i][j] == friend_emax && W[j][i] == friend_emax);
-		F[i][j] = F[j][i] = false;
-		W[i][j] = W[j][i] = soulmate_emax;
-	    }
-	}
-	// generate stranger points
-	for (int i = 0 ; i != N ; ++i) {
-	    for (int j = 0 ; j != N ; ++j) {
-		if (W[j][i] < 0) {
-		    W[j][i] = stranger_emax;
-		}
-	    }
-	}
-	
-	// verify enjoyment array
-	int s1 = 0;
-	for (int i = 0 ; i != N ; ++i)
-	    s1 += W[i][0];
-	for (int j = 0 ; j != N ; ++j) {
-	    int s2 = 0;
-	    for (int i = 0 ; i != N ; ++i) {
-		s2 += W[i][j];
-		verify(W[i][j] >= 0);
-	    }
-	    verify(s1 == s2);
+	    if (mj < 0 || C[mj] != mi || Arrays.binarySearch(G[mi], mj) < 0)
+		throw new IllegalStateException("Soulmates are not a perfect matching");
+	    Sm[Mi[mi]] = Mi[mj];
 	}
-	return W;
-    }
-
-    private static boolean[][] random_symmetric_graph(int nodes, int degree)
-    {
-	if (nodes <= 0 || degree <= 0 || degree >= nodes)
-	    throw new IllegalArgumentException();
-	// all node connections (symmetric)
-	boolean[][] C = new boolean [nodes][nodes];
-	for (int d = 0 ; d != degree ; ++d) {
-	    // mark nodes you connect per turn
-	    boolean[] M = new boolean [nodes];
-	    int j, k = 0;
-	    for (int i = 0 ; i != nodes ; ++i) {
-		// skip marked nodes
-		if (M[i]) continue;
-		// find all unmarked disconnected nodes
-		for (j = 0 ; j != nodes ; ++j)
-		    if (i != j && !M[j] && !C[i][j]) k++;
-		// no disconnected nodes
-		if (k == 0) {
-		    int i2 = 0, j2 = 0, k2 = 0;
-		    // count all unmarked connected nodes
-		    for (j = 0 ; j != nodes ; ++j)
-			if (i != j && !M[j] && C[i][j]) k2++;
-		    do {
-			// pick a unmarked connected node
-			k = random.nextInt(k2) + 1;
-			for (j = 0 ;; ++j)
-			    if (!M[j] && C[i][j] && --k == 0) break;
-			// find all pairs of marked connected nodes
-			for (i2 = 0 ; i2 != nodes ; ++i2) {
-			    if (!M[i2]) continue;
-			    for (j2 = 0 ; j2 != nodes ; ++j2) {
-				if (!M[j2] || !C[i2][j2]) continue;
-				if (!C[i][i2] && !C[j][j2]) k++;
-			    }
-			}
-			// if no marked pair retry with another unmarked pair
-		    } while (k == 0);
-		    // pick a pair of marked connected nodes
-		    k = random.nextInt(k) + 1;
-		    nested_loop:
-		    for (i2 = 0 ; i2 != nodes ; ++i2) {
-			if (!M[i2]) continue;
-			for (j2 = 0 ; j2 != nodes ; ++j2) {
-			    if (!M[j2] || !C[i2][j2]) continue;
-			    if (!C[i][i2] && !C[j][j2] && --k == 0)
-				break nested_loop;
-			}
-		    }
-		    // disconnect one pair of nodes
-		    C[i2][j2] = C[j2][i2] = false;
-		    // connect two pairs of nodes
-		    C[i][i2] = C[i2][i] = true;
-		    C[j][j2] = C[j2][j] = true;
-		} else {
-		    // pick a disconnected node
-		    k = random.nextInt(k) + 1;
-		    for (j = 0 ;; ++j)
-			if (i != j && !M[j] && !C[i][j] && --k == 0) break;
-		    // connect the disconnected nodes
-		    C[i][j] = C[j][i] = true;
-		}
-		// mark connected nodes
-		M[i] = M[j] = true;
-	    }
-	}
-	return C;
-    }
-
-    private static double distance(Point p1, Point p2)
-    {
-	double dx = p1.x - p2.x;
-	double dy = p1.y - p2.y;
-	return Math.sqrt(dx * dx + dy * dy);
-    }
-
-    private static boolean distance_gt(Point p1, Point p2, double d)
-    {
-	double dx = p1.x - p2.x;
-	double dy = p1.y - p2.y;
-	return dx * dx + dy * dy > d * d;
-    }
-
-    private static boolean distance_lt(Point p1, Point p2, double d)
-    {
-	double dx = p1.x - p2.x;
-	double dy = p1.y - p2.y;
-	return dx * dx + dy * dy < d * d;
-    }
-
-    private static void print(PrintStream out, String message)
-    {
-	if (out != null) out.print(message);
-    }
-
-    private static void println(PrintStream out, String message)
-    {
-	if (out != null) out.println(message);
-    }
-
-    private static String toString(int number, int digits, boolean zero)
-    {
-	byte[] bytes = new byte [digits];
-	do {
-	    bytes[--digits] = (byte) (number % 10 + '0');
-	    number /= 10;
-	} while (number != 0);
-	while (digits != 0)
-	    bytes[--digits] = (byte) (zero ? '0' : ' ');
-	return new String(bytes);
-    }
-
-    private static String state(String group,
-				Point[] locations,
-				Point[] previous_locations,
-				int[] score,
-				int max_score,
-				int[][] wisdom,
-				boolean[] wiser,
-				boolean[][] friends,
-				int[] soulmates,
-				int side,
-				String clock,
-				long gui_refresh)
-    {
-	int N = locations.length;
-	StringBuffer buf = new StringBuffer();
-	buf.append(N + "," + side + "," + clock + "," +
-		   max_score + "," + gui_refresh);
+	// friends are the remaining connections of the graph
+	int[][] Fl = new int [N][];
 	for (int i = 0 ; i != N ; ++i) {
-	    int j = locations[i].id;
-	    buf.append("," + group +
-		       "," + locations[i].x +
-		       "," + locations[i].y +
-		       "," + previous_locations[i].x +
-		       "," + previous_locations[i].y +
-		       "," + j +
-		       "," + (wiser[i] ? 1 : 0) +
-		       "," + wisdom[j][i] +
-		       "," + (friends[i][j] ? 1 :
-			      (j == soulmates[i] ? 2 : 0)) +
-		       "," + score[i]);
-	}
-	return buf.toString();
-    }
-
-    private static void gui(HTTPServer server, String content)
-	throws UnknownServiceException
-    {
-	String path = null;
-	for (;;) {
-	    // get request
-	    for (;;)
-		try {
-		    path = server.request();
-		    break;
-		} catch (IOException e) {
-		    System.err.println("HTTP request error: " + e.getMessage());
-		}
-	    // dynamic content
-	    if (path.equals("data.txt"))
-		// send dynamic content
-		try {
-		    server.reply(content);
-		    return;
-		} catch (IOException e) {
-		    System.err.println("HTTP dynamic reply error: " + e.getMessage());
-		    continue;
-		}
-	    // static content
-	    if (path.equals("")) path = "webpage.html";
-	    else if (!path.equals("favicon.ico") &&
-		     !path.equals("apple-touch-icon.png") &&
-		     !path.equals("script.js")) break;
-	    // send file
-	    File file = new File(root + File.separator + "sim"
-				 + File.separator + path);
-	    try {
-		server.reply(file);
-	    } catch (IOException e) {
-		System.err.println("HTTP static reply error: " + e.getMessage());
-	    }
+	    Fl[i] = new int [friends];
+	    int k = 0;
+	    for (int j : F[i])
+		if (j != Sm[i]) Fl[i][k++] = j;
 	}
-	if (path == null)
-	    throw new UnknownServiceException("Unknown HTTP request (null path)");
-	else
-	    throw new UnknownServiceException("Unknown HTTP request: \"" + path + "\"");
+	return new Enjoyment(Fl, Sm, eps, emax);
     }
 
     private static Set <File> directory(String path, String extension)
@@ -772,8 +391,8 @@ class Simulator {
 	return last_date;
     }
 
-    private static Class <Player> load(String group) throws IOException,
-							    ReflectiveOperationException
+    static Class <?> load(String group) throws IOException,
+						       ReflectiveOperationException
     {
 	String sep = File.separator;
 	Set <File> player_files = directory(root + sep + group, ".java");
@@ -799,10 +418,7 @@ class Simulator {
 	ClassLoader loader = Simulator.class.getClassLoader();
 	if (loader == null)
 	    throw new IOException("Cannot find Java class loader");
-	@SuppressWarnings("rawtypes")
-	    Class raw_class = loader.loadClass(root + "." + group + ".Player");
-	@SuppressWarnings("unchecked")
-	    Class <Player> player_class = raw_class;
-	return player_class;
+	// implements either Player or ArrayPlayer (checked by the game)
+	return loader.loadClass(root + "." + group + ".Player");
     }
 }
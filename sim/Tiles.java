@@ -0,0 +1,110 @@
+package sqdance.sim;
+
+import java.util.concurrent.*;
+
+// Runs per-dancer work of a turn in tiles on a fork-join pool
+// A tile is a run of dancers in grid order (nearby dancers) or in id order
+// Work for a dancer must only write slots owned by that dancer so that
+// results do not depend on how tiles are scheduled
+
+class Tiles {
+
+	public interface Work {
+		// i -> dancer to process
+		// found -> scratch space of one id per dancer owned by the tile
+		public void run(int i, int[] found);
+	}
+
+	// one reusable task per tile so that a turn does not allocate tasks
+	private final class Tile extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] found;
+		private int[] order;
+		private int from;
+		private int to;
+		private Work work;
+
+		private Tile(int nodes)
+		{
+			found = new int [nodes];
+		}
+
+		protected void compute()
+		{
+			for (int k = from ; k != to ; ++k)
+				work.run(order == null ? k : order[k], found);
+		}
+	}
+
+	private final class All extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		protected void compute()
+		{
+			invokeAll(tiles);
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final Tile[] tiles;
+	private final All all = new All();
+	private final int nodes;
+
+	// threads = 1 runs all work on the calling thread
+	public Tiles(int threads, int nodes)
+	{
+		if (threads <= 0 || nodes <= 0)
+			throw new IllegalArgumentException();
+		this.nodes = nodes;
+		int count = threads == 1 ? 1 : Math.min(threads * 4, nodes);
+		pool = threads == 1 ? null : new ForkJoinPool(threads);
+		tiles = new Tile [count];
+		for (int t = 0 ; t != count ; ++t)
+			tiles[t] = new Tile(nodes);
+	}
+
+	public int threads()
+	{
+		return pool == null ? 1 : pool.getParallelism();
+	}
+
+	// run work for all dancers tiled in order of the grid cells
+	public void run(Grid grid, Work work)
+	{
+		run(grid.order(), work);
+	}
+
+	// run work for dancers [0, nodes) tiled in id order
+	public void run(Work work)
+	{
+		run((int[]) null, work);
+	}
+
+	private void run(int[] order, Work work)
+	{
+		int count = tiles.length;
+		for (int t = 0 ; t != count ; ++t) {
+			Tile tile = tiles[t];
+			tile.reinitialize();
+			tile.order = order;
+			tile.from = (int) ((long) nodes * t / count);
+			tile.to = (int) ((long) nodes * (t + 1) / count);
+			tile.work = work;
+		}
+		if (pool == null) {
+			tiles[0].compute();
+			return;
+		}
+		// rethrows the first runtime exception of any tile
+		all.reinitialize();
+		pool.invoke(all);
+	}
+
+	public void close()
+	{
+		if (pool != null) pool.shutdown();
+	}
+}
@@ -0,0 +1,185 @@
+package sqdance.sim;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Binary trace of the frames of a game for replay without re-running it
+//
+// header: magic, version, dancers, room side, max score, keyframe interval,
+//         quantization bits, frames, turn of the first frame, index offset
+//         (long), group (short + utf8)
+// frames: one record per frame, every dancer has a flags byte and then the
+//         changed fields as zigzag varints
+//         (deltas from the previous frame or from zero on keyframes)
+// index:  offset of every frame (long) so any turn is found directly
+//
+// Locations are quantized to 2^-bits of a unit (about 1e-6 for 20 bits)
+
+class Trace {
+
+	public static final int magic = 0x53514454; // "SQDT"
+	public static final int version = 1;
+	public static final int keyframe = 32;
+	public static final int bits = 20;
+
+	// flags of the fields of a dancer in a frame record
+	public static final int x_changed = 1;
+	public static final int y_changed = 2;
+	public static final int partner_changed = 4;
+	public static final int remaining_changed = 8;
+	public static final int score_changed = 16;
+	public static final int enjoyed = 32;
+	public static final int relation_shift = 6;
+
+	private final FileChannel channel;
+	private final ByteBuffer header;
+	private final ByteBuffer record;
+	private final int N;
+	private final int[] qx; // last recorded frame
+	private final int[] qy;
+	private final int[] partner;
+	private final int[] remaining;
+	private final int[] score;
+	private long[] index = new long [1024];
+	private int frames = 0;
+	private int first = 0; // turn of the first frame (a resumed game starts later)
+	private long offset;
+
+	public Trace(File file, String group, int N, int room_side, int max_score)
+		throws IOException
+	{
+		this.N = N;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+		                           StandardOpenOption.WRITE,
+		                           StandardOpenOption.TRUNCATE_EXISTING);
+		byte[] name = group.getBytes(StandardCharsets.UTF_8);
+		header = ByteBuffer.allocate(header_size(name.length));
+		header.putInt(magic).putInt(version).putInt(N).putInt(room_side)
+		      .putInt(max_score).putInt(keyframe).putInt(bits)
+		      .putInt(0).putInt(0).putLong(0).putShort((short) name.length)
+		      .put(name);
+		header.flip();
+		write(header, 0);
+		offset = header.capacity();
+		// flags byte and five varints of at most 5 bytes per dancer
+		record = ByteBuffer.allocate(N * 26);
+		qx = new int [N];
+		qy = new int [N];
+		partner = new int [N];
+		remaining = new int [N];
+		score = new int [N];
+	}
+
+	public static int header_size(int group_bytes)
+	{
+		return 9 * 4 + 8 + 2 + group_bytes;
+	}
+
+	public static int quantize(double c)
+	{
+		return (int) Math.round(c * (1 << bits));
+	}
+
+	public static double dequantize(int q)
+	{
+		return q / (double) (1 << bits);
+	}
+
+	public static int zigzag(int v)
+	{
+		return (v << 1) ^ (v >> 31);
+	}
+
+	public static int unzigzag(int v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void put_varint(ByteBuffer buf, int v)
+	{
+		while ((v & ~0x7F) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	public static int get_varint(ByteBuffer buf)
+	{
+		int v = 0;
+		for (int shift = 0 ;; shift += 7) {
+			byte b = buf.get();
+			v |= (b & 0x7F) << shift;
+			if (b >= 0) return v;
+		}
+	}
+
+	private void write(ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+
+	// append the frame (frames must be recorded for consecutive turns)
+	public void record(Frame frame) throws IOException
+	{
+		if (frame.size() != N || (frames != 0 && frame.turn != first + frames))
+			throw new IllegalArgumentException();
+		if (frames == 0) first = frame.turn;
+		boolean key = frames % keyframe == 0;
+		record.clear();
+		for (int i = 0 ; i != N ; ++i) {
+			int x = quantize(frame.x[i]);
+			int y = quantize(frame.y[i]);
+			int dx = key ? x : x - qx[i];
+			int dy = key ? y : y - qy[i];
+			int dp = key ? frame.partner[i] : frame.partner[i] - partner[i];
+			int dr = key ? frame.remaining[i] : frame.remaining[i] - remaining[i];
+			int ds = key ? frame.score[i] : frame.score[i] - score[i];
+			int flags = (dx != 0 ? x_changed : 0) | (dy != 0 ? y_changed : 0) |
+			            (dp != 0 ? partner_changed : 0) |
+			            (dr != 0 ? remaining_changed : 0) |
+			            (ds != 0 ? score_changed : 0) |
+			            (frame.enjoyed[i] ? enjoyed : 0) |
+			            (frame.relation[i] << relation_shift);
+			record.put((byte) flags);
+			if (dx != 0) put_varint(record, zigzag(dx));
+			if (dy != 0) put_varint(record, zigzag(dy));
+			if (dp != 0) put_varint(record, zigzag(dp));
+			if (dr != 0) put_varint(record, zigzag(dr));
+			if (ds != 0) put_varint(record, zigzag(ds));
+			qx[i] = x;
+			qy[i] = y;
+			partner[i] = frame.partner[i];
+			remaining[i] = frame.remaining[i];
+			score[i] = frame.score[i];
+		}
+		record.flip();
+		if (frames == index.length)
+			index = Arrays.copyOf(index, frames * 2);
+		long position = offset;
+		index[frames++] = position;
+		offset += record.remaining();
+		write(record, position);
+	}
+
+	// write the index and complete the header
+	public void close() throws IOException
+	{
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(frames * 8);
+			buf.asLongBuffer().put(index, 0, frames);
+			write(buf, offset);
+			header.putInt(7 * 4, frames).putInt(8 * 4, first)
+			      .putLong(9 * 4, offset);
+			header.rewind();
+			write(header, 0);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -28,6 +28,9 @@ function process(data)
 	throw "Invalid data format: " + data.length + " != " + a;
     var side = parse_integer(data[1]);
     var clock = data[2].trim();
+    var hms = clock.split(":");
+    turn = (parse_integer(hms[0]) * 3600 + parse_integer(hms[1]) * 60 +
+	    parse_integer(hms[2])) / 6;
     var max_score = parse_integer(data[3]);
     var refresh = parse_integer(data[4]);
     // parse the players and their scores
@@ -189,6 +192,40 @@ function process(data)
 
 var latest_version = -1;
 
+// turn of the latest frame
+var turn = 0;
+
+// replay of a trace (page opened as ?replay) can seek to any turn
+var replay = location.search == "?replay";
+var seek = -1;
+var stopped = false;
+var slider = null;
+
+if (replay) {
+    slider = document.createElement("input");
+    slider.type = "range";
+    slider.min = 0;
+    slider.max = 0;
+    slider.value = 0;
+    slider.style.width = document.getElementById("canvas").width + "px";
+    document.getElementById("canvas").parentNode.appendChild(slider);
+    slider.oninput = (function() {
+	seek = parse_integer(slider.value);
+	if (stopped) {
+	    stopped = false;
+	    ajax(latest_version + 1, 10, 100);
+	}
+    });
+    var turns = new XMLHttpRequest();
+    turns.onload = (function() {
+	var range = turns.responseText.split(",");
+	slider.min = parse_integer(range[0]);
+	slider.max = parse_integer(range[1]);
+    });
+    turns.open("GET", "turns.txt", true);
+    turns.send();
+}
+
 function ajax(version, retries, timeout)
 {
     var xhr = new XMLHttpRequest();
@@ -204,9 +241,13 @@ function ajax(version, retries, timeout)
 		latest_version = version;
 	    else
 		refresh = -1;
+	    if (slider != null && seek < 0)
+		slider.value = turn;
 	} catch (message) { alert(message); }
 	if (refresh >= 0)
 	    setTimeout(function() { ajax(version + 1, 10, 100); }, refresh);
+	else
+	    stopped = true;
     });
     xhr.onabort   = (function() { location.reload(true); });
     xhr.onerror   = (function() { location.reload(true); });
@@ -220,10 +261,42 @@ function ajax(version, retries, timeout)
 	    ajax(version, retries - 1, timeout * 2);
 	}
     });
-    xhr.open("GET", "data.txt", true);
+    var path = "data.txt";
+    if (seek >= 0) {
+	path += "?turn=" + seek;
+	seek = -1;
+    } else if (replay && version > 0)
+	// every viewer keeps its own place in the replay
+	path += "?turn=" + (turn + 1);
+    xhr.open("GET", path, true);
     xhr.responseType = "text";
     xhr.timeout = timeout;
     xhr.send();
 }
 
-ajax(0, 10, 100);
+// live games push every frame as a server-sent event
+function stream()
+{
+    var source = new EventSource("events");
+    source.onmessage = (function(e) {
+	var refresh = -1;
+	try {
+	    refresh = process(e.data);
+	} catch (message) { alert(message); }
+	// the last frame of the game (or one frame per reload)
+	if (refresh < 0)
+	    source.close();
+    });
+    source.onerror = (function() {
+	// the server is gone or cannot stream, poll instead
+	if (source.readyState == EventSource.CLOSED) {
+	    source.close();
+	    ajax(0, 10, 100);
+	}
+    });
+}
+
+if (!replay && window.EventSource)
+    stream();
+else
+    ajax(0, 10, 100);